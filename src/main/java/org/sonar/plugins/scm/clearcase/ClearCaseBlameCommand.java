@@ -23,7 +23,14 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,62 +52,255 @@ public class ClearCaseBlameCommand extends BlameCommand {
     "You may not annotate a checked-out version",
     "Cannot perform operation for derived object"};
   private final CommandExecutor commandExecutor;
+  private final ClearCaseConfiguration configuration;
+  private final ClearCaseBlameMemoryBudget memoryBudget;
+  private final ClearCaseBlamePrefetcher prefetcher;
+  private final ClearCaseBlameSnapshots snapshots;
 
-  public ClearCaseBlameCommand() {
-    this(CommandExecutor.create());
+  public ClearCaseBlameCommand(ClearCaseConfiguration configuration, ClearCaseBlameMemoryBudget memoryBudget, ClearCaseBlamePrefetcher prefetcher,
+    ClearCaseBlameSnapshots snapshots) {
+    this(CommandExecutor.create(), configuration, memoryBudget, prefetcher, snapshots);
   }
 
-  ClearCaseBlameCommand(CommandExecutor commandExecutor) {
+  ClearCaseBlameCommand(CommandExecutor commandExecutor, ClearCaseConfiguration configuration, ClearCaseBlameMemoryBudget memoryBudget,
+    ClearCaseBlamePrefetcher prefetcher, ClearCaseBlameSnapshots snapshots) {
     this.commandExecutor = commandExecutor;
+    this.configuration = configuration;
+    this.memoryBudget = memoryBudget;
+    this.prefetcher = prefetcher;
+    this.snapshots = snapshots;
   }
 
   @Override
   public void blame(BlameInput input, BlameOutput output) {
     FileSystem fs = input.fileSystem();
     LOG.debug("Working directory: " + fs.baseDir().getAbsolutePath());
+    Map<InputFile, Target> targets = new LinkedHashMap<InputFile, Target>();
     for (InputFile inputFile : input.filesToBlame()) {
-      blame(fs, inputFile, output);
+      targets.put(inputFile, resolveTarget(fs, inputFile));
+    }
+    consumePrefetched(targets, output);
+    ClearCaseElementVersions versions = null;
+    if (snapshots.isImporting() || snapshots.isExporting()) {
+      versions = new ClearCaseElementVersions(this);
+      for (Target target : targets.values()) {
+        versions.register(target.element());
+      }
+    }
+    ClearCaseVersionHistory history = null;
+    if (configuration.leanAnnotate()) {
+      history = new ClearCaseVersionHistory(this);
+      for (Map.Entry<InputFile, Target> entry : targets.entrySet()) {
+        if (!isInSnapshot(entry.getKey(), entry.getValue(), versions)) {
+          history.register(entry.getValue().element());
+        }
+      }
+    }
+    for (Map.Entry<InputFile, Target> entry : targets.entrySet()) {
+      InputFile inputFile = entry.getKey();
+      long reserved = memoryBudget.acquire(inputFile.lines());
+      try {
+        blame(inputFile, entry.getValue(), output, versions, history);
+      } finally {
+        memoryBudget.release(inputFile.lines(), reserved);
+        if (versions != null) {
+          versions.done(entry.getValue().element());
+        }
+        if (history != null) {
+          history.done(entry.getValue().element());
+        }
+      }
+    }
+    if (memoryBudget.heldBackCount() > 0) {
+      LOG.info("Blame memory budget: " + memoryBudget);
+    } else {
+      LOG.debug("Blame memory budget: " + memoryBudget);
+    }
+  }
+
+  private void blame(InputFile inputFile, Target target, BlameOutput output, @Nullable ClearCaseElementVersions versions,
+    @Nullable ClearCaseVersionHistory history) {
+    String filename = inputFile.relativePath();
+    String elementVersion = versions != null ? versions.get(target.element()) : null;
+    List<BlameLine> lines = null;
+    if (elementVersion != null) {
+      lines = snapshots.get(inputFile, elementVersion);
+    }
+    if (lines == null) {
+      lines = annotate(target, inputFile, history);
+      if (lines == null) {
+        return;
+      }
+    } else {
+      LOG.debug("Reusing blame of " + filename + " from snapshot, element version " + elementVersion);
+    }
+    output.blameResult(inputFile, lines);
+    if (elementVersion != null) {
+      snapshots.put(inputFile, elementVersion, lines);
     }
+  }
 
+  private boolean isInSnapshot(InputFile inputFile, Target target, @Nullable ClearCaseElementVersions versions) {
+    if (versions == null || !snapshots.isImporting()) {
+      return false;
+    }
+    String elementVersion = versions.get(target.element());
+    return elementVersion != null && snapshots.contains(inputFile, elementVersion);
   }
 
-  private void blame(FileSystem fs, InputFile inputFile, BlameOutput output) {
+  /**
+   * Outputs the blame of files annotated in the background, and removes them from the files left to blame.
+   * Prefetched files are consumed in submission order while the prefetch goes on, so that only files not annotated yet
+   * are waited for. Files whose prefetch failed are left to be blamed again.
+   */
+  private void consumePrefetched(Map<InputFile, Target> targets, BlameOutput output) {
+    Map<String, InputFile> pending = new HashMap<String, InputFile>();
+    for (InputFile inputFile : targets.keySet()) {
+      if (prefetcher.isQueued(inputFile)) {
+        pending.put(inputFile.absolutePath(), inputFile);
+      }
+    }
+    if (pending.isEmpty()) {
+      prefetcher.stop();
+      return;
+    }
+    int consumed = 0;
+    try {
+      while (!pending.isEmpty()) {
+        ClearCaseBlamePrefetcher.Prefetch prefetch = prefetcher.next();
+        if (prefetch == null) {
+          break;
+        }
+        InputFile inputFile = pending.remove(prefetch.inputFile().absolutePath());
+        if (inputFile == null) {
+          prefetch.discard();
+          continue;
+        }
+        try {
+          ClearCaseBlamePrefetcher.Result result = prefetch.get();
+          targets.remove(inputFile);
+          consumed++;
+          if (result != null) {
+            output.blameResult(inputFile, result.lines());
+            if (result.elementVersion() != null) {
+              snapshots.put(inputFile, result.elementVersion(), result.lines());
+            }
+          }
+        } catch (ExecutionException e) {
+          LOG.debug("Prefetched blame of " + inputFile.relativePath() + " failed, blaming it again", e);
+        } finally {
+          prefetch.release();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for prefetched blame", e);
+    } finally {
+      // Remaining prefetches are not blamed by this module
+      prefetcher.stop();
+    }
+    LOG.info(consumed + " files blamed in background, " + targets.size() + " left to blame");
+  }
+
+  /**
+   * Creates the annotator used to prefetch the blame of the given files in the background. In metadata-lean mode, the history
+   * of their directories is shared by all workers and released once all files of a directory are annotated. When a snapshot
+   * is exported, element versions are resolved the same way by the workers.
+   */
+  ClearCaseBlamePrefetcher.Annotator prefetchAnnotator(final FileSystem fs, List<InputFile> files) {
+    final ClearCaseVersionHistory history = configuration.leanAnnotate() ? new ClearCaseVersionHistory(this) : null;
+    final ClearCaseElementVersions versions = snapshots.isExporting() ? new ClearCaseElementVersions(this) : null;
+    for (InputFile inputFile : files) {
+      File element = resolveTarget(fs, inputFile).element();
+      if (history != null) {
+        history.register(element);
+      }
+      if (versions != null) {
+        versions.register(element);
+      }
+    }
+    return new ClearCaseBlamePrefetcher.Annotator() {
+      @Override
+      public ClearCaseBlamePrefetcher.Result annotate(InputFile inputFile) {
+        Target target = resolveTarget(fs, inputFile);
+        try {
+          String elementVersion = versions != null ? versions.get(target.element()) : null;
+          List<BlameLine> lines = ClearCaseBlameCommand.this.annotate(target, inputFile, history);
+          return lines != null ? new ClearCaseBlamePrefetcher.Result(lines, elementVersion) : null;
+        } finally {
+          if (history != null) {
+            history.done(target.element());
+          }
+          if (versions != null) {
+            versions.done(target.element());
+          }
+        }
+      }
+    };
+  }
+
+  private static Target resolveTarget(FileSystem fs, InputFile inputFile) {
     String filename = inputFile.relativePath();
     File f = inputFile.file();
-    Command cl = null;
     if (Files.isSymbolicLink(f.toPath())) {
       try {
         Path p = f.toPath().toRealPath();
         File workingDirectory = p.getParent().toFile();
         String file = p.getFileName().toString(); 
-        cl = createCommandLine(workingDirectory, file);
         LOG.debug(filename +  " is a symlink to: " + workingDirectory.toString()+"/"+file);
+        return new Target(workingDirectory, file);
       } catch (IOException e) {
         LOG.warn(e.getMessage(), e);
+        throw new IllegalStateException("Unable to create command line for " + fs.baseDir() + filename, e);
       }
-    } else {
-      cl = createCommandLine(fs.baseDir(), filename);
     }
-    if ( cl == null ) {
-      throw new IllegalStateException("Unable to create command line for " + fs.baseDir() + filename);
+    return new Target(fs.baseDir(), filename);
+  }
+
+  /**
+   * @return the annotated lines, or null if the file can't be annotated
+   */
+  @CheckForNull
+  private List<BlameLine> annotate(Target target, InputFile inputFile, @Nullable ClearCaseVersionHistory history) {
+    List<BlameLine> lines = null;
+    if (history != null) {
+      ClearCaseLeanBlameConsumer consumer = new ClearCaseLeanBlameConsumer(inputFile.relativePath());
+      if (!execute(createLeanCommandLine(target.workingDirectory, target.filename), consumer)) {
+        return null;
+      }
+      lines = history.resolve(target.element(), consumer.getVersions());
+      if (lines == null) {
+        LOG.debug("Unable to resolve all versions of " + inputFile.relativePath() + " from history, falling back to full annotate");
+      }
     }
-    ClearCaseBlameConsumer consumer = new ClearCaseBlameConsumer(filename);
-    StringStreamConsumer stderr = new StringStreamConsumer();
+    if (lines == null) {
+      ClearCaseBlameConsumer consumer = new ClearCaseBlameConsumer(inputFile.relativePath());
+      if (!execute(createCommandLine(target.workingDirectory, target.filename), consumer)) {
+        return null;
+      }
+      lines = consumer.getLines();
+    }
+    if (lines.size() == inputFile.lines() - 1) {
+      // SONARPLUGINS-3097 ClearCase do not report blame on last empty line
+      lines.add(lines.get(lines.size() - 1));
+    }
+    return lines;
+  }
 
+  /**
+   * @return false if annotate failed with an error that should be ignored
+   */
+  private boolean execute(Command cl, StreamConsumer consumer) {
+    StringStreamConsumer stderr = new StringStreamConsumer();
     int exitCode = execute(cl, consumer, stderr);
     if (exitCode != 0) {
       String stdErr = stderr.getOutput();
       if (ignoredError(stdErr)) {
-        return;
+        return false;
       }
       throw new IllegalStateException("The ClearCase annotate command [" + cl.toString() + "] failed: " + stdErr);
     }
-    List<BlameLine> lines = consumer.getLines();
-    if (lines.size() == inputFile.lines() - 1) {
-      // SONARPLUGINS-3097 ClearCase do not report blame on last empty line
-      lines.add(lines.get(lines.size() - 1));
-    }
-    output.blameResult(inputFile, lines);
+    return true;
   }
 
   private static boolean ignoredError(String stdErr) {
@@ -140,4 +340,36 @@ public class ClearCaseBlameCommand extends BlameCommand {
     return cl;
   }
 
+  /**
+   * Only asks for the version of each line, author and date being resolved from {@link ClearCaseVersionHistory}.
+   */
+  private static Command createLeanCommandLine(File workingDirectory, String filename) {
+    Command cl = Command.create("cleartool");
+    cl.setDirectory(workingDirectory);
+    cl.addArgument("annotate");
+    cl.addArgument("-out");
+    cl.addArgument("-");
+    cl.addArgument("-fmt");
+    cl.addArgument("%Vn@@@");
+    cl.addArgument("-nheader");
+    cl.addArgument("-f");
+    cl.addArgument(filename);
+
+    return cl;
+  }
+
+  private static class Target {
+    private final File workingDirectory;
+    private final String filename;
+
+    Target(File workingDirectory, String filename) {
+      this.workingDirectory = workingDirectory;
+      this.filename = filename;
+    }
+
+    File element() {
+      return new File(workingDirectory, filename);
+    }
+  }
+
 }
@@ -19,32 +19,22 @@
  */
 package org.sonar.plugins.scm.clearcase;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.sonar.api.batch.scm.BlameLine;
 import org.sonar.api.utils.command.StreamConsumer;
 
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ClearCaseBlameConsumer implements StreamConsumer {
 
-  private static final Logger LOG = LoggerFactory.getLogger(ClearCaseBlameConsumer.class);
-
-  private static final String CLEARCASE_TIMESTAMP_PATTERN = "yyyyMMdd.HHmmss";
-
   private static final String LINE_PATTERN = "VERSION:(.*)@@@USER:(.*)@@@DATE:(.*)@@@(.*)";
 
   private List<BlameLine> lines = new ArrayList<BlameLine>();
 
-  private DateFormat format;
+  private final ClearCaseDateParser dateParser;
 
   private final String filename;
 
@@ -52,7 +42,7 @@ public class ClearCaseBlameConsumer implements StreamConsumer {
 
   public ClearCaseBlameConsumer(String filename) {
     this.filename = filename;
-    this.format = new SimpleDateFormat(CLEARCASE_TIMESTAMP_PATTERN, Locale.ENGLISH);
+    this.dateParser = new ClearCaseDateParser();
     this.pattern = Pattern.compile(LINE_PATTERN);
   }
 
@@ -75,14 +65,7 @@ public class ClearCaseBlameConsumer implements StreamConsumer {
    * @return A date representing the timestamp of the log entry.
    */
   protected Date parseDate(String date) {
-    try {
-      return format.parse(date);
-    } catch (ParseException e) {
-      LOG.warn(
-        "skip ParseException: " + e.getMessage() + " during parsing date " + date
-          + " with pattern " + CLEARCASE_TIMESTAMP_PATTERN + " with Locale " + Locale.ENGLISH, e);
-      return null;
-    }
+    return dateParser.parse(date);
   }
 
   public List<BlameLine> getLines() {
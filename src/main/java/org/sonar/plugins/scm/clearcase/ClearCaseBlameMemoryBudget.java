@@ -0,0 +1,143 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.sonar.api.BatchComponent;
+import org.sonar.api.batch.InstantiationStrategy;
+
+/**
+ * Bounds the estimated memory of blame results in flight, from the start of an annotate until its lines have been
+ * handed to the blame output. Workers asking for more than what is left are held back until earlier results are released.
+ * A single reservation is always admitted when nothing else is in flight, so that files larger than the budget still get blamed.
+ * <p>
+ * Memory kept for the whole analysis, like blame snapshots, is {@link #retain(long) retained}: it counts against the budget
+ * but never blocks, so that workers are held back earlier as the snapshots grow.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class ClearCaseBlameMemoryBudget implements BatchComponent {
+
+  /**
+   * Rough footprint of a parsed {@link org.sonar.api.batch.scm.BlameLine}, with its date, strings and list slot.
+   */
+  static final long BYTES_PER_LINE = 256;
+
+  private final long maxBytes;
+
+  private long bytesInFlight;
+  private long bytesRetained;
+  private long linesInFlight;
+  private long peakBytes;
+  private long peakLines;
+  private long heldBackNanos;
+  private int heldBackCount;
+
+  public ClearCaseBlameMemoryBudget(ClearCaseConfiguration configuration) {
+    this(configuration.blameMemoryBudget());
+  }
+
+  ClearCaseBlameMemoryBudget(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public long maxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Blocks until the blame of a file of the given number of lines fits in the budget, and reserves it.
+   *
+   * @return the reserved number of bytes, to be given back to {@link #release(int, long)}
+   */
+  public synchronized long acquire(int lines) {
+    long bytes = Math.max(lines, 1) * BYTES_PER_LINE;
+    if (!fits(bytes)) {
+      long start = System.nanoTime();
+      heldBackCount++;
+      try {
+        while (!fits(bytes)) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for blame memory budget", e);
+      } finally {
+        heldBackNanos += System.nanoTime() - start;
+      }
+    }
+    bytesInFlight += bytes;
+    linesInFlight += lines;
+    peakBytes = Math.max(peakBytes, bytesInFlight + bytesRetained);
+    peakLines = Math.max(peakLines, linesInFlight);
+    return bytes;
+  }
+
+  public synchronized void release(int lines, long bytes) {
+    bytesInFlight -= bytes;
+    linesInFlight -= lines;
+    notifyAll();
+  }
+
+  /**
+   * Adds memory kept until the end of the analysis, or gives it back when the given number of bytes is negative.
+   */
+  public synchronized void retain(long bytes) {
+    bytesRetained += bytes;
+    peakBytes = Math.max(peakBytes, bytesInFlight + bytesRetained);
+    if (bytes < 0) {
+      notifyAll();
+    }
+  }
+
+  private boolean fits(long bytes) {
+    return bytesInFlight == 0 || bytesRetained + bytesInFlight + bytes <= maxBytes;
+  }
+
+  public synchronized long bytesInFlight() {
+    return bytesInFlight;
+  }
+
+  public synchronized long bytesRetained() {
+    return bytesRetained;
+  }
+
+  public synchronized long heldBackMillis() {
+    return heldBackNanos / 1000000;
+  }
+
+  public synchronized int heldBackCount() {
+    return heldBackCount;
+  }
+
+  public synchronized long peakBytes() {
+    return peakBytes;
+  }
+
+  public synchronized long peakLines() {
+    return peakLines;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "peak of " + peakLines + " lines (~" + (peakBytes / 1024) + " KB) in flight, including " + (bytesRetained / 1024) + " KB of snapshots, out of "
+      + (maxBytes / 1024) + " KB, "
+      + heldBackCount + " files held back for " + heldBackMillis() + " ms";
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.Phase;
+import org.sonar.api.batch.Sensor;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.batch.fs.FilePredicate;
+import org.sonar.api.batch.fs.FilePredicates;
+import org.sonar.api.batch.fs.FileSystem;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.resources.Project;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts the blame prefetch as soon as the file system is indexed, so that annotate runs while other sensors do.
+ * Like the SCM sensor, files unchanged since the previous analysis are skipped unless a reload of all files is forced.
+ */
+@Phase(name = Phase.Name.PRE)
+public class ClearCaseBlamePrefetchSensor implements Sensor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClearCaseBlamePrefetchSensor.class);
+
+  private final ClearCaseConfiguration configuration;
+  private final FileSystem fs;
+  private final ClearCaseBlameCommand blameCommand;
+  private final ClearCaseBlamePrefetcher prefetcher;
+
+  public ClearCaseBlamePrefetchSensor(ClearCaseConfiguration configuration, FileSystem fs, ClearCaseBlameCommand blameCommand,
+    ClearCaseBlamePrefetcher prefetcher) {
+    this.configuration = configuration;
+    this.fs = fs;
+    this.blameCommand = blameCommand;
+    this.prefetcher = prefetcher;
+  }
+
+  @Override
+  public boolean shouldExecuteOnProject(Project project) {
+    if (configuration.prefetchThreads() == 0 || !configuration.isScmProvider()) {
+      return false;
+    }
+    if (configuration.snapshotImportFile() != null) {
+      LOG.warn("Blame prefetch is disabled when a blame snapshot is imported");
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public void analyse(Project project, SensorContext context) {
+    FilePredicates p = fs.predicates();
+    FilePredicate toBlame = configuration.forceReloadAll() ? p.all() : p.not(p.hasStatus(InputFile.Status.SAME));
+    List<InputFile> files = new ArrayList<InputFile>();
+    for (InputFile inputFile : fs.inputFiles(toBlame)) {
+      files.add(inputFile);
+    }
+    prefetcher.start(files, blameCommand.prefetchAnnotator(fs, files));
+  }
+
+  @Override
+  public String toString() {
+    return "ClearCase Blame Prefetch";
+  }
+
+}
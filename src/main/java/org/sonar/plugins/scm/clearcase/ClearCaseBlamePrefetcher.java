@@ -0,0 +1,262 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchComponent;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Annotates files in the background before the SCM sensor asks for their blame.
+ * <p>
+ * Files are reserved in the {@link ClearCaseBlameMemoryBudget} by a single feeder thread, in order, before being submitted
+ * to the annotate workers. Reservations are only released once the result has been consumed or discarded, so prefetched
+ * results never use more than the budget and consuming them in submission order with {@link #next()} can't dead lock.
+ * The feeder and workers keep running while results are consumed, so the consumer only waits for files not annotated yet.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class ClearCaseBlamePrefetcher implements BatchComponent, Startable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClearCaseBlamePrefetcher.class);
+
+  public interface Annotator {
+    /**
+     * @return the blame of the file, or null if it can't be annotated
+     */
+    @CheckForNull
+    Result annotate(InputFile inputFile);
+  }
+
+  /**
+   * Blame of a prefetched file, with the element version it was annotated at when it is needed for the exported snapshot.
+   */
+  public static class Result {
+    private final List<BlameLine> lines;
+    private final String elementVersion;
+
+    public Result(List<BlameLine> lines, @Nullable String elementVersion) {
+      this.lines = lines;
+      this.elementVersion = elementVersion;
+    }
+
+    public List<BlameLine> lines() {
+      return lines;
+    }
+
+    @CheckForNull
+    public String elementVersion() {
+      return elementVersion;
+    }
+  }
+
+  private final ClearCaseConfiguration configuration;
+  private final ClearCaseBlameMemoryBudget memoryBudget;
+
+  private final Deque<Prefetch> submitted = new ArrayDeque<Prefetch>();
+  private final Set<String> queued = new HashSet<String>();
+  private ExecutorService executor;
+  private Thread feeder;
+
+  public ClearCaseBlamePrefetcher(ClearCaseConfiguration configuration, ClearCaseBlameMemoryBudget memoryBudget) {
+    this.configuration = configuration;
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Starts annotating the given files in the background. Prefetches left over by a previous call are discarded.
+   */
+  public synchronized void start(Iterable<InputFile> files, final Annotator annotator) {
+    stop();
+    final List<InputFile> toPrefetch = new ArrayList<InputFile>();
+    for (InputFile inputFile : files) {
+      toPrefetch.add(inputFile);
+      queued.add(inputFile.absolutePath());
+    }
+    int threads = configuration.prefetchThreads();
+    LOG.info("Prefetching blame of " + toPrefetch.size() + " files with " + threads + " threads");
+    final ExecutorService pool = Executors.newFixedThreadPool(threads,
+      new ThreadFactoryBuilder().setNameFormat("clearcase-blame-prefetch-%d").setDaemon(true).build());
+    executor = pool;
+    feeder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        feed(toPrefetch, annotator, pool);
+      }
+    }, "clearcase-blame-prefetch-feeder");
+    feeder.setDaemon(true);
+    feeder.start();
+  }
+
+  private void feed(List<InputFile> files, final Annotator annotator, ExecutorService pool) {
+    try {
+      for (final InputFile inputFile : files) {
+        long reserved;
+        try {
+          reserved = memoryBudget.acquire(inputFile.lines());
+        } catch (IllegalStateException e) {
+          // Interrupted by stop()
+          return;
+        }
+        Prefetch prefetch = new Prefetch(inputFile, reserved);
+        synchronized (this) {
+          if (feeder != Thread.currentThread()) {
+            prefetch.release();
+            return;
+          }
+          prefetch.future = pool.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+              return annotator.annotate(inputFile);
+            }
+          });
+          submitted.add(prefetch);
+          notifyAll();
+        }
+      }
+    } finally {
+      synchronized (this) {
+        if (feeder == Thread.currentThread()) {
+          feeder = null;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the file is being prefetched and has not been handed over by {@link #next()} yet
+   */
+  public synchronized boolean isQueued(InputFile inputFile) {
+    return queued.contains(inputFile.absolutePath());
+  }
+
+  /**
+   * Hands over the next submitted file, in submission order, waiting for the feeder to submit it if needed. The file may
+   * still be annotated in the background. The caller is responsible for consuming or discarding it, so that the feeder
+   * can reserve the memory of the next files.
+   *
+   * @return the next file, or null once all files have been handed over or if prefetching was stopped
+   */
+  @CheckForNull
+  public synchronized Prefetch next() throws InterruptedException {
+    while (submitted.isEmpty() && feeder != null) {
+      wait();
+    }
+    Prefetch prefetch = submitted.poll();
+    if (prefetch != null) {
+      queued.remove(prefetch.inputFile().absolutePath());
+    }
+    return prefetch;
+  }
+
+  @Override
+  public void start() {
+    // Prefetch is started by ClearCaseBlamePrefetchSensor once files are indexed
+  }
+
+  /**
+   * Cancels all pending work. Called by the container at the end of the analysis, including when it fails.
+   */
+  @Override
+  public synchronized void stop() {
+    stopFeeder();
+    for (Prefetch prefetch : submitted) {
+      prefetch.discard();
+    }
+    submitted.clear();
+    queued.clear();
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    notifyAll();
+  }
+
+  private void stopFeeder() {
+    if (feeder != null) {
+      feeder.interrupt();
+      feeder = null;
+    }
+  }
+
+  public class Prefetch {
+    private final InputFile inputFile;
+    private final long reserved;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private Future<Result> future;
+
+    Prefetch(InputFile inputFile, long reserved) {
+      this.inputFile = inputFile;
+      this.reserved = reserved;
+    }
+
+    public InputFile inputFile() {
+      return inputFile;
+    }
+
+    /**
+     * Waits for the file to be annotated.
+     *
+     * @return the blame of the file, or null if it can't be annotated
+     */
+    @CheckForNull
+    public Result get() throws InterruptedException, ExecutionException {
+      return future.get();
+    }
+
+    /**
+     * Gives back the memory reserved for this file, once its result has been handed over.
+     */
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        memoryBudget.release(inputFile.lines(), reserved);
+      }
+    }
+
+    public void discard() {
+      if (future != null) {
+        future.cancel(false);
+      }
+      release();
+    }
+  }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact binary snapshot of blame results, keyed by file path and element version.
+ * <p>
+ * Authors and revisions are dictionary encoded, consecutive identical lines are stored as a single run
+ * and run dates are delta encoded against the previous run. The whole stream is gzipped.
+ */
+public class ClearCaseBlameSnapshot {
+
+  private static final int MAGIC = 0x43434253;
+  private static final int FORMAT_VERSION = 1;
+
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+  private long runCount;
+
+  /**
+   * Records the blame of a file. Lines without date can't be encoded, in which case the file is not recorded.
+   *
+   * @return true if the file was recorded
+   */
+  public boolean put(String path, String elementVersion, List<BlameLine> lines) {
+    List<BlameLine> runs = new ArrayList<BlameLine>();
+    List<Integer> lengths = new ArrayList<Integer>();
+    BlameLine previous = null;
+    for (BlameLine line : lines) {
+      if (line.date() == null) {
+        remove(path);
+        return false;
+      }
+      if (line.equals(previous)) {
+        lengths.set(lengths.size() - 1, lengths.get(lengths.size() - 1) + 1);
+      } else {
+        runs.add(line);
+        lengths.add(1);
+        previous = line;
+      }
+    }
+    remove(path);
+    add(path, new Entry(elementVersion, runs, toArray(lengths)));
+    return true;
+  }
+
+  private void add(String path, Entry entry) {
+    entries.put(path, entry);
+    runCount += entry.runs.size();
+  }
+
+  private void remove(String path) {
+    Entry entry = entries.remove(path);
+    if (entry != null) {
+      runCount -= entry.runs.size();
+    }
+  }
+
+  /**
+   * @return the recorded blame of the file, or null if the file is unknown or was recorded for another element version
+   */
+  @CheckForNull
+  public List<BlameLine> get(String path, @Nullable String elementVersion) {
+    Entry entry = entries.get(path);
+    if (entry == null || !entry.elementVersion.equals(elementVersion)) {
+      return null;
+    }
+    List<BlameLine> lines = new ArrayList<BlameLine>();
+    for (int i = 0; i < entry.runs.size(); i++) {
+      BlameLine run = entry.runs.get(i);
+      for (int j = 0; j < entry.lengths[i]; j++) {
+        lines.add(new BlameLine().date(run.date()).revision(run.revision()).author(run.author()));
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * @return the number of lines recorded for the file, or -1 if the file is unknown or was recorded for another element version
+   */
+  public int lines(String path, @Nullable String elementVersion) {
+    Entry entry = entries.get(path);
+    if (entry == null || !entry.elementVersion.equals(elementVersion)) {
+      return -1;
+    }
+    int lines = 0;
+    for (int length : entry.lengths) {
+      lines += length;
+    }
+    return lines;
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the number of runs of identical lines recorded for all files, which drives the memory used by the snapshot
+   */
+  public long runCount() {
+    return runCount;
+  }
+
+  public static ClearCaseBlameSnapshot load(File file) throws IOException {
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return read(in);
+    }
+  }
+
+  /**
+   * Writes the snapshot to a temporary file of the same directory, then renames it over the given file, so that
+   * readers never see a partially written snapshot.
+   */
+  public void save(File file) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Unable to create directory " + parent);
+    }
+    File temp = File.createTempFile(file.getName(), ".tmp", parent);
+    try {
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp))) {
+        write(out);
+      }
+      try {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp.toPath());
+    }
+  }
+
+  /**
+   * Collections are grown while reading rather than sized from the counts of the stream, so that a corrupted
+   * or truncated snapshot fails with an {@link IOException} instead of exhausting memory.
+   */
+  public static ClearCaseBlameSnapshot read(InputStream input) throws IOException {
+    DataInputStream in = new DataInputStream(new GZIPInputStream(input));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a ClearCase blame snapshot");
+    }
+    int formatVersion = in.readUnsignedByte();
+    if (formatVersion != FORMAT_VERSION) {
+      throw new IOException("Unsupported ClearCase blame snapshot format version: " + formatVersion);
+    }
+    String[] authors = readDictionary(in);
+    String[] revisions = readDictionary(in);
+    ClearCaseBlameSnapshot snapshot = new ClearCaseBlameSnapshot();
+    long previousDate = 0;
+    int fileCount = readVarInt(in);
+    for (int i = 0; i < fileCount; i++) {
+      String path = in.readUTF();
+      String elementVersion = in.readUTF();
+      int runCount = readVarInt(in);
+      List<BlameLine> runs = new ArrayList<BlameLine>();
+      List<Integer> lengths = new ArrayList<Integer>();
+      for (int r = 0; r < runCount; r++) {
+        lengths.add(readVarInt(in));
+        String author = lookup(authors, readVarInt(in));
+        String revision = lookup(revisions, readVarInt(in));
+        previousDate += zigZagDecode(readVarLong(in));
+        runs.add(new BlameLine().date(new Date(previousDate)).revision(revision).author(author));
+      }
+      snapshot.add(path, new Entry(elementVersion, runs, toArray(lengths)));
+    }
+    return snapshot;
+  }
+
+  public void write(OutputStream output) throws IOException {
+    Map<String, Integer> authors = new LinkedHashMap<String, Integer>();
+    Map<String, Integer> revisions = new LinkedHashMap<String, Integer>();
+    for (Entry entry : entries.values()) {
+      for (BlameLine run : entry.runs) {
+        index(authors, run.author());
+        index(revisions, run.revision());
+      }
+    }
+
+    GZIPOutputStream gzip = new GZIPOutputStream(output);
+    DataOutputStream out = new DataOutputStream(gzip);
+    out.writeInt(MAGIC);
+    out.writeByte(FORMAT_VERSION);
+    writeDictionary(out, authors);
+    writeDictionary(out, revisions);
+    long previousDate = 0;
+    writeVarInt(out, entries.size());
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      Entry entry = e.getValue();
+      out.writeUTF(e.getKey());
+      out.writeUTF(entry.elementVersion);
+      writeVarInt(out, entry.runs.size());
+      for (int r = 0; r < entry.runs.size(); r++) {
+        BlameLine run = entry.runs.get(r);
+        writeVarInt(out, entry.lengths[r]);
+        writeVarInt(out, reference(authors, run.author()));
+        writeVarInt(out, reference(revisions, run.revision()));
+        long date = run.date().getTime();
+        writeVarLong(out, zigZagEncode(date - previousDate));
+        previousDate = date;
+      }
+    }
+    out.flush();
+    gzip.finish();
+  }
+
+  private static void index(Map<String, Integer> dictionary, @Nullable String value) {
+    if (value != null && !dictionary.containsKey(value)) {
+      dictionary.put(value, dictionary.size());
+    }
+  }
+
+  /**
+   * 0 stands for null, other values are dictionary indexes shifted by one.
+   */
+  private static int reference(Map<String, Integer> dictionary, @Nullable String value) {
+    return value == null ? 0 : (dictionary.get(value) + 1);
+  }
+
+  @CheckForNull
+  private static String lookup(String[] dictionary, int reference) throws IOException {
+    if (reference == 0) {
+      return null;
+    }
+    if (reference > dictionary.length) {
+      throw new IOException("Corrupted ClearCase blame snapshot: invalid dictionary reference " + reference);
+    }
+    return dictionary[reference - 1];
+  }
+
+  private static void writeDictionary(DataOutputStream out, Map<String, Integer> dictionary) throws IOException {
+    writeVarInt(out, dictionary.size());
+    for (String value : dictionary.keySet()) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String[] readDictionary(DataInputStream in) throws IOException {
+    int size = readVarInt(in);
+    List<String> dictionary = new ArrayList<String>();
+    for (int i = 0; i < size; i++) {
+      dictionary.add(in.readUTF());
+    }
+    return dictionary.toArray(new String[dictionary.size()]);
+  }
+
+  private static int[] toArray(List<Integer> values) {
+    int[] array = new int[values.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = values.get(i);
+    }
+    return array;
+  }
+
+  private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+    writeVarLong(out, value & 0xFFFFFFFFL);
+  }
+
+  private static int readVarInt(DataInputStream in) throws IOException {
+    long value = readVarLong(in);
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new IOException("Corrupted ClearCase blame snapshot: invalid length " + value);
+    }
+    return (int) value;
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      out.writeByte((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    out.writeByte((int) remaining);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Corrupted ClearCase blame snapshot: malformed variable length number");
+  }
+
+  private static long zigZagEncode(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long zigZagDecode(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static class Entry {
+    private final String elementVersion;
+    private final List<BlameLine> runs;
+    private final int[] lengths;
+
+    Entry(String elementVersion, List<BlameLine> runs, int[] lengths) {
+      this.elementVersion = elementVersion;
+      this.runs = runs;
+      this.lengths = lengths;
+    }
+  }
+
+}
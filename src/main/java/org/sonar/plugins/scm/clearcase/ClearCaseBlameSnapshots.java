@@ -0,0 +1,167 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.picocontainer.Startable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchComponent;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Blame snapshots shared by all modules of the analysis: the imported snapshot is loaded once, and the exported one
+ * accumulates the blame of every module before being written when the analysis ends.
+ * Files are identified by their path relative to the root project, so that snapshots can be used from another checkout.
+ * Both snapshots stay in memory until the end of the analysis and are retained in the {@link ClearCaseBlameMemoryBudget}.
+ */
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class ClearCaseBlameSnapshots implements BatchComponent, Startable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClearCaseBlameSnapshots.class);
+
+  /**
+   * Rough footprint of a run of identical lines in a snapshot: a shared {@link BlameLine}, its date, list slot and length.
+   */
+  static final long BYTES_PER_RUN = 96;
+
+  private final ClearCaseConfiguration configuration;
+  private final ClearCaseBlameMemoryBudget memoryBudget;
+  private final Path rootDir;
+  private final ClearCaseBlameSnapshot exported;
+  private ClearCaseBlameSnapshot imported;
+  private boolean importLoaded;
+
+  public ClearCaseBlameSnapshots(ClearCaseConfiguration configuration, ClearCaseBlameMemoryBudget memoryBudget, ProjectReactor reactor) {
+    this.configuration = configuration;
+    this.memoryBudget = memoryBudget;
+    this.rootDir = reactor.getRoot().getBaseDir().toPath().toAbsolutePath().normalize();
+    this.exported = configuration.snapshotExportFile() != null ? new ClearCaseBlameSnapshot() : null;
+  }
+
+  public boolean isImporting() {
+    return configuration.snapshotImportFile() != null;
+  }
+
+  public boolean isExporting() {
+    return exported != null;
+  }
+
+  /**
+   * @return the imported blame of the file, or null if it is unknown, was recorded for another element version or another number of lines
+   */
+  @CheckForNull
+  public synchronized List<BlameLine> get(InputFile inputFile, String elementVersion) {
+    ClearCaseBlameSnapshot snapshot = imported();
+    if (snapshot == null) {
+      return null;
+    }
+    List<BlameLine> lines = snapshot.get(key(inputFile), elementVersion);
+    return lines != null && lines.size() == inputFile.lines() ? lines : null;
+  }
+
+  /**
+   * @return true if {@link #get(InputFile, String)} would return the blame of the file
+   */
+  public synchronized boolean contains(InputFile inputFile, String elementVersion) {
+    ClearCaseBlameSnapshot snapshot = imported();
+    return snapshot != null && snapshot.lines(key(inputFile), elementVersion) == inputFile.lines();
+  }
+
+  public synchronized void put(InputFile inputFile, String elementVersion, List<BlameLine> lines) {
+    if (exported != null) {
+      long runCount = exported.runCount();
+      exported.put(key(inputFile), elementVersion, lines);
+      memoryBudget.retain((exported.runCount() - runCount) * BYTES_PER_RUN);
+    }
+  }
+
+  String key(InputFile inputFile) {
+    Path path = inputFile.file().toPath().toAbsolutePath().normalize();
+    if (!path.startsWith(rootDir)) {
+      return path.toString().replace('\\', '/');
+    }
+    return rootDir.relativize(path).toString().replace('\\', '/');
+  }
+
+  @CheckForNull
+  private ClearCaseBlameSnapshot imported() {
+    if (!importLoaded) {
+      importLoaded = true;
+      imported = load(configuration.snapshotImportFile());
+      if (imported != null) {
+        memoryBudget.retain(imported.runCount() * BYTES_PER_RUN);
+      }
+    }
+    return imported;
+  }
+
+  @CheckForNull
+  private static ClearCaseBlameSnapshot load(@Nullable File importFile) {
+    if (importFile == null) {
+      return null;
+    }
+    if (!importFile.isFile()) {
+      LOG.warn("Blame snapshot " + importFile.getAbsolutePath() + " does not exist, all files will be annotated");
+      return null;
+    }
+    try {
+      ClearCaseBlameSnapshot snapshot = ClearCaseBlameSnapshot.load(importFile);
+      LOG.info("Loaded blame snapshot of " + snapshot.size() + " files from " + importFile.getAbsolutePath());
+      return snapshot;
+    } catch (IOException e) {
+      LOG.warn("Unable to read blame snapshot " + importFile.getAbsolutePath() + ", all files will be annotated", e);
+      return null;
+    }
+  }
+
+  @Override
+  public void start() {
+    // Imported snapshot is only loaded if some file is blamed
+  }
+
+  /**
+   * Writes the exported snapshot once all modules have been blamed.
+   */
+  @Override
+  public synchronized void stop() {
+    File exportFile = configuration.snapshotExportFile();
+    if (exported == null || exportFile == null) {
+      return;
+    }
+    try {
+      exported.save(exportFile);
+      LOG.info("Saved blame snapshot of " + exported.size() + " files to " + exportFile.getAbsolutePath());
+    } catch (IOException e) {
+      LOG.warn("Unable to write blame snapshot " + exportFile.getAbsolutePath(), e);
+    }
+  }
+
+}
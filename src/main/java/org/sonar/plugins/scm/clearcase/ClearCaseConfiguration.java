@@ -0,0 +1,156 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import com.google.common.collect.ImmutableList;
+import org.sonar.api.BatchComponent;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.PropertyType;
+import org.sonar.api.batch.InstantiationStrategy;
+import org.sonar.api.config.PropertyDefinition;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.Qualifiers;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.util.List;
+
+@InstantiationStrategy(InstantiationStrategy.PER_BATCH)
+public class ClearCaseConfiguration implements BatchComponent {
+
+  private static final String CATEGORY_CLEARCASE = "ClearCase";
+  public static final String SNAPSHOT_IMPORT_PROP_KEY = "sonar.clearcase.snapshot.import";
+  public static final String SNAPSHOT_EXPORT_PROP_KEY = "sonar.clearcase.snapshot.export";
+  public static final String LEAN_ANNOTATE_PROP_KEY = "sonar.clearcase.annotate.lean";
+  public static final String MEMORY_BUDGET_PROP_KEY = "sonar.clearcase.blame.memoryBudget";
+  public static final String PREFETCH_THREADS_PROP_KEY = "sonar.clearcase.blame.prefetchThreads";
+  /**
+   * Defined by the SCM sensor of the platform: blame all files, even those unchanged since the previous analysis.
+   */
+  public static final String FORCE_RELOAD_ALL_PROP_KEY = "sonar.scm.forceReloadAll";
+
+  private final Settings settings;
+
+  public ClearCaseConfiguration(Settings settings) {
+    this.settings = settings;
+  }
+
+  public static List<PropertyDefinition> getProperties() {
+    return ImmutableList.of(
+      PropertyDefinition.builder(SNAPSHOT_IMPORT_PROP_KEY)
+        .name("Blame snapshot to import")
+        .description("Path of a blame snapshot previously exported by this plugin. "
+          + "Files whose element version is unchanged since the snapshot are not annotated again.")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CLEARCASE)
+        .onQualifiers(Qualifiers.PROJECT)
+        .index(0)
+        .build(),
+      PropertyDefinition.builder(SNAPSHOT_EXPORT_PROP_KEY)
+        .name("Blame snapshot to export")
+        .description("Path where a blame snapshot of all blamed files is written at the end of the blame phase.")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CLEARCASE)
+        .onQualifiers(Qualifiers.PROJECT)
+        .index(1)
+        .build(),
+      PropertyDefinition.builder(LEAN_ANNOTATE_PROP_KEY)
+        .name("Metadata-lean annotate")
+        .description("Only ask annotate for the version of each line and resolve authors and dates "
+          + "with a single lshistory per directory. Reduces annotate output on files with many lines.")
+        .type(PropertyType.BOOLEAN)
+        .defaultValue("false")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CLEARCASE)
+        .onQualifiers(Qualifiers.PROJECT)
+        .index(2)
+        .build(),
+      PropertyDefinition.builder(MEMORY_BUDGET_PROP_KEY)
+        .name("Blame memory budget")
+        .description("Estimated memory, in MB, that blame results in flight and blame snapshots kept in memory may use "
+          + "before blaming of new files is held back. Defaults to a quarter of the maximum heap size.")
+        .type(PropertyType.INTEGER)
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CLEARCASE)
+        .onQualifiers(Qualifiers.PROJECT)
+        .index(3)
+        .build(),
+      PropertyDefinition.builder(PREFETCH_THREADS_PROP_KEY)
+        .name("Blame prefetch threads")
+        .description("Number of threads annotating files in the background as soon as they are indexed, "
+          + "while other sensors are running. 0 disables prefetching.")
+        .type(PropertyType.INTEGER)
+        .defaultValue("0")
+        .category(CoreProperties.CATEGORY_SCM)
+        .subCategory(CATEGORY_CLEARCASE)
+        .onQualifiers(Qualifiers.PROJECT)
+        .index(4)
+        .build());
+  }
+
+  @CheckForNull
+  public File snapshotImportFile() {
+    return fileOrNull(SNAPSHOT_IMPORT_PROP_KEY);
+  }
+
+  @CheckForNull
+  public File snapshotExportFile() {
+    return fileOrNull(SNAPSHOT_EXPORT_PROP_KEY);
+  }
+
+  public boolean leanAnnotate() {
+    return settings.getBoolean(LEAN_ANNOTATE_PROP_KEY);
+  }
+
+  /**
+   * @return the blame memory budget in bytes
+   */
+  public long blameMemoryBudget() {
+    long megabytes = settings.getLong(MEMORY_BUDGET_PROP_KEY);
+    if (megabytes <= 0) {
+      return Runtime.getRuntime().maxMemory() / 4;
+    }
+    return megabytes * 1024 * 1024;
+  }
+
+  public int prefetchThreads() {
+    return Math.max(0, settings.getInt(PREFETCH_THREADS_PROP_KEY));
+  }
+
+  public boolean forceReloadAll() {
+    return settings.getBoolean(FORCE_RELOAD_ALL_PROP_KEY);
+  }
+
+  /**
+   * @return true if ClearCase is the SCM provider of the analysis and SCM data is not disabled
+   */
+  public boolean isScmProvider() {
+    return !settings.getBoolean(CoreProperties.SCM_DISABLED_KEY)
+      && ClearCaseScmProvider.KEY.equals(settings.getString(CoreProperties.SCM_PROVIDER_KEY));
+  }
+
+  @CheckForNull
+  private File fileOrNull(String key) {
+    String path = settings.getString(key);
+    return path == null || path.trim().isEmpty() ? null : new File(path.trim());
+  }
+
+}
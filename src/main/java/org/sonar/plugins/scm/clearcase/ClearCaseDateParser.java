@@ -0,0 +1,59 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.CheckForNull;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Parses dates printed by the %Nd format of cleartool. Not thread safe.
+ */
+public class ClearCaseDateParser {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClearCaseDateParser.class);
+
+  private static final String CLEARCASE_TIMESTAMP_PATTERN = "yyyyMMdd.HHmmss";
+
+  private final DateFormat format = new SimpleDateFormat(CLEARCASE_TIMESTAMP_PATTERN, Locale.ENGLISH);
+
+  /**
+   * @return the parsed date, or null if it can't be parsed
+   */
+  @CheckForNull
+  public Date parse(String date) {
+    try {
+      return format.parse(date);
+    } catch (ParseException e) {
+      LOG.warn(
+        "skip ParseException: " + e.getMessage() + " during parsing date " + date
+          + " with pattern " + CLEARCASE_TIMESTAMP_PATTERN + " with Locale " + Locale.ENGLISH, e);
+      return null;
+    }
+  }
+
+}
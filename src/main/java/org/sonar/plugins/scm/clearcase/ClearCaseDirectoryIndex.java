@@ -0,0 +1,174 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import com.google.common.base.Throwables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+import org.sonar.api.utils.command.StringStreamConsumer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Element data loaded with a single batched cleartool command per directory, the first time an element of that
+ * directory is looked up, and released once all registered elements of the directory are done. Thread safe: only the
+ * bookkeeping is done under the index lock, directories are loaded outside of it so that lookups of other directories
+ * are not held back, while concurrent lookups of the same directory wait for a single load.
+ */
+public abstract class ClearCaseDirectoryIndex<V> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClearCaseDirectoryIndex.class);
+
+  /**
+   * Keeps command lines short enough for Windows.
+   */
+  static final int MAX_ELEMENTS_PER_COMMAND = 100;
+
+  private final ClearCaseBlameCommand command;
+  private final Map<File, List<String>> elementsByDirectory = new LinkedHashMap<File, List<String>>();
+  private final Map<File, FutureTask<Map<String, V>>> loaded = new HashMap<File, FutureTask<Map<String, V>>>();
+
+  protected ClearCaseDirectoryIndex(ClearCaseBlameCommand command) {
+    this.command = command;
+  }
+
+  /**
+   * Declares an element that will be looked up later, so that it is fetched along with its siblings.
+   */
+  public synchronized void register(File element) {
+    File directory = element.getParentFile();
+    List<String> names = elementsByDirectory.get(directory);
+    if (names == null) {
+      names = new ArrayList<String>();
+      elementsByDirectory.put(directory, names);
+    }
+    names.add(element.getName());
+  }
+
+  /**
+   * Declares that a registered element won't be looked up anymore, so that the data of its directory can be released.
+   * Elements that were not registered are ignored.
+   */
+  public synchronized void done(File element) {
+    File directory = element.getParentFile();
+    List<String> names = elementsByDirectory.get(directory);
+    if (names == null || !names.remove(element.getName())) {
+      return;
+    }
+    if (names.isEmpty()) {
+      elementsByDirectory.remove(directory);
+      loaded.remove(directory);
+    }
+  }
+
+  /**
+   * @return the data of the directory of the element, loaded on first use
+   */
+  protected Map<String, V> directory(File element) {
+    File directory = element.getParentFile();
+    FutureTask<Map<String, V>> task;
+    synchronized (this) {
+      task = loaded.get(directory);
+      if (task == null) {
+        List<String> names = elementsByDirectory.get(directory);
+        if (names == null || !names.contains(element.getName())) {
+          // Not registered, or already done
+          List<String> single = new ArrayList<String>();
+          single.add(element.getName());
+          task = newLoad(directory, single);
+        } else {
+          task = newLoad(directory, new ArrayList<String>(names));
+          loaded.put(directory, task);
+        }
+      }
+    }
+    // No-op if another thread already runs or ran the load
+    task.run();
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while loading ClearCase data of " + directory, e);
+    } catch (ExecutionException e) {
+      synchronized (this) {
+        if (loaded.get(directory) == task) {
+          loaded.remove(directory);
+        }
+      }
+      Throwables.propagateIfPossible(e.getCause());
+      throw new IllegalStateException("Unable to load ClearCase data of " + directory, e.getCause());
+    }
+  }
+
+  private FutureTask<Map<String, V>> newLoad(final File directory, final List<String> names) {
+    return new FutureTask<Map<String, V>>(new Callable<Map<String, V>>() {
+      @Override
+      public Map<String, V> call() {
+        return load(directory, names);
+      }
+    });
+  }
+
+  /**
+   * Loads the data of the given elements of a directory, typically with {@link #execute(File, List, StreamConsumer, String...)}.
+   */
+  protected abstract Map<String, V> load(File directory, List<String> names);
+
+  /**
+   * Runs a cleartool command on the given elements, in chunks. Errors on some elements (view private files...)
+   * don't prevent the others from being listed, so failures are only logged.
+   */
+  protected void execute(File directory, List<String> names, StreamConsumer consumer, String... arguments) {
+    for (int from = 0; from < names.size(); from += MAX_ELEMENTS_PER_COMMAND) {
+      Command cl = Command.create("cleartool");
+      cl.setDirectory(directory);
+      cl.addArguments(arguments);
+      cl.addArguments(names.subList(from, Math.min(names.size(), from + MAX_ELEMENTS_PER_COMMAND)));
+      StringStreamConsumer stderr = new StringStreamConsumer();
+      int exitCode = command.execute(cl, consumer, stderr);
+      if (exitCode != 0) {
+        LOG.debug("The ClearCase command [" + cl + "] failed: " + stderr.getOutput());
+      }
+    }
+  }
+
+  /**
+   * @return the name of an element printed by %En, without its directory nor version-extended suffix
+   */
+  static String elementName(String element) {
+    String name = element;
+    int extended = name.indexOf("@@");
+    if (extended >= 0) {
+      name = name.substring(0, extended);
+    }
+    return name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+  }
+
+}
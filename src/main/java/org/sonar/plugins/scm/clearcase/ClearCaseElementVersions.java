@@ -0,0 +1,73 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.sonar.api.utils.command.StreamConsumer;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Versions currently selected by the view, loaded with a single batched describe per directory.
+ */
+public class ClearCaseElementVersions extends ClearCaseDirectoryIndex<String> {
+
+  private static final String CHECKEDOUT = "CHECKEDOUT";
+
+  private static final Pattern LINE_PATTERN = Pattern.compile("ELEMENT:(.*)@@@VERSION:(.*)");
+
+  public ClearCaseElementVersions(ClearCaseBlameCommand command) {
+    super(command);
+  }
+
+  /**
+   * @return the version currently selected by the view for the element, or null if it has no stable version (view private, checked-out...)
+   */
+  @CheckForNull
+  public String get(File element) {
+    String version = directory(element).get(element.getName());
+    if (version == null || version.isEmpty() || version.endsWith(CHECKEDOUT)) {
+      return null;
+    }
+    return version;
+  }
+
+  @Override
+  protected Map<String, String> load(File directory, List<String> names) {
+    final Map<String, String> versions = new HashMap<String, String>();
+    execute(directory, names, new StreamConsumer() {
+      @Override
+      public void consumeLine(String line) {
+        Matcher matcher = LINE_PATTERN.matcher(line);
+        if (matcher.matches()) {
+          versions.put(elementName(matcher.group(1)), matcher.group(2).trim());
+        }
+      }
+    }, "describe", "-fmt", "ELEMENT:%En@@@VERSION:%Vn\\n");
+    return versions;
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.command.StreamConsumer;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Consumes the output of lshistory and indexes the author and date of each version by element name and version.
+ */
+public class ClearCaseHistoryConsumer implements StreamConsumer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClearCaseHistoryConsumer.class);
+
+  private static final String LINE_PATTERN = "ELEMENT:(.*)@@@VERSION:(.*)@@@USER:(.*)@@@DATE:(.*)";
+
+  private final Map<String, BlameLine> versions = new HashMap<String, BlameLine>();
+
+  private final ClearCaseDateParser dateParser;
+
+  private final Pattern pattern;
+
+  public ClearCaseHistoryConsumer() {
+    this.dateParser = new ClearCaseDateParser();
+    this.pattern = Pattern.compile(LINE_PATTERN);
+  }
+
+  @Override
+  public void consumeLine(String line) {
+    Matcher matcher = pattern.matcher(line);
+    if (!matcher.matches()) {
+      LOG.debug("Ignoring history line: " + line);
+      return;
+    }
+    String version = matcher.group(2);
+    if (version.isEmpty()) {
+      // Event not related to a version (element or branch creation...)
+      return;
+    }
+    Date date = dateParser.parse(matcher.group(4));
+    String revision = version.substring(Math.max(version.lastIndexOf('/'), version.lastIndexOf('\\')) + 1);
+    versions.put(key(matcher.group(1), version), new BlameLine().date(date).revision(revision).author(matcher.group(3)));
+  }
+
+  /**
+   * @param element name of the element, possibly with a path or a version-extended suffix
+   */
+  public static String key(String element, String version) {
+    return ClearCaseDirectoryIndex.elementName(element) + "@@" + version;
+  }
+
+  public Map<String, BlameLine> getVersions() {
+    return versions;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.sonar.api.utils.command.StreamConsumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Consumes the output of the metadata-lean annotate, where each line only carries the version that introduced it.
+ */
+public class ClearCaseLeanBlameConsumer implements StreamConsumer {
+
+  private static final String LINE_PATTERN = "(.*?)@@@(.*)";
+
+  private final List<String> versions = new ArrayList<String>();
+
+  private final String filename;
+
+  private final Pattern pattern;
+
+  public ClearCaseLeanBlameConsumer(String filename) {
+    this.filename = filename;
+    this.pattern = Pattern.compile(LINE_PATTERN);
+  }
+
+  @Override
+  public void consumeLine(String line) {
+    Matcher matcher = pattern.matcher(line);
+    if (!matcher.matches()) {
+      throw new IllegalStateException("Unable to blame file " + filename + ". Unrecognized blame info at line " + (versions.size() + 1) + ": " + line);
+    }
+    versions.add(matcher.group(1));
+  }
+
+  public List<String> getVersions() {
+    return versions;
+  }
+}
@@ -32,7 +32,13 @@ public final class ClearCasePlugin extends SonarPlugin {
     List result = new ArrayList();
     result.addAll(ImmutableList.of(
       ClearCaseScmProvider.class,
-      ClearCaseBlameCommand.class));
+      ClearCaseBlameCommand.class,
+      ClearCaseConfiguration.class,
+      ClearCaseBlameMemoryBudget.class,
+      ClearCaseBlamePrefetcher.class,
+      ClearCaseBlameSnapshots.class,
+      ClearCaseBlamePrefetchSensor.class));
+    result.addAll(ClearCaseConfiguration.getProperties());
     return result;
   }
 
@@ -24,6 +24,8 @@ import org.sonar.api.batch.scm.ScmProvider;
 
 public class ClearCaseScmProvider extends ScmProvider {
 
+  static final String KEY = "clearcase";
+
   private final ClearCaseBlameCommand blameCommand;
 
   public ClearCaseScmProvider(ClearCaseBlameCommand blameCommand) {
@@ -32,7 +34,7 @@ public class ClearCaseScmProvider extends ScmProvider {
 
   @Override
   public String key() {
-    return "clearcase";
+    return KEY;
   }
 
   @Override
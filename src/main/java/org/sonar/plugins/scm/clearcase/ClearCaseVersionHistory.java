@@ -0,0 +1,74 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.batch.scm.BlameLine;
+
+import javax.annotation.CheckForNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Author and date of element versions, loaded with a single batched lshistory per directory.
+ */
+public class ClearCaseVersionHistory extends ClearCaseDirectoryIndex<BlameLine> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ClearCaseVersionHistory.class);
+
+  public ClearCaseVersionHistory(ClearCaseBlameCommand command) {
+    super(command);
+  }
+
+  /**
+   * @return one blame line per version, or null if one of the versions is not in the history of the element
+   */
+  @CheckForNull
+  public List<BlameLine> resolve(File element, List<String> versions) {
+    Map<String, BlameLine> history = directory(element);
+    List<BlameLine> lines = new ArrayList<BlameLine>(versions.size());
+    for (String version : versions) {
+      BlameLine line = history.get(ClearCaseHistoryConsumer.key(element.getName(), version));
+      if (line == null) {
+        LOG.debug("Version " + version + " of " + element + " not found in history");
+        return null;
+      }
+      lines.add(line);
+    }
+    return lines;
+  }
+
+  @Override
+  protected Map<String, BlameLine> load(File directory, List<String> names) {
+    ClearCaseHistoryConsumer consumer = new ClearCaseHistoryConsumer();
+    StringBuilder format = new StringBuilder();
+    format.append("ELEMENT:%En@@@");
+    format.append("VERSION:%Vn@@@");
+    format.append("USER:%u@@@");
+    format.append("DATE:%Nd\\n");
+    execute(directory, names, consumer, "lshistory", "-nco", "-fmt", format.toString());
+    return consumer.getVersions();
+  }
+
+}
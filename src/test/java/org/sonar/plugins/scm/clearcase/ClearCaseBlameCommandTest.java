@@ -21,7 +21,11 @@ package org.sonar.plugins.scm.clearcase;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 import org.junit.Before;
 import org.junit.Rule;
@@ -30,21 +34,26 @@ import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.sonar.api.batch.bootstrap.ProjectDefinition;
+import org.sonar.api.batch.bootstrap.ProjectReactor;
 import org.sonar.api.batch.fs.InputFile;
 import org.sonar.api.batch.fs.internal.DefaultFileSystem;
 import org.sonar.api.batch.fs.internal.DefaultInputFile;
 import org.sonar.api.batch.scm.BlameCommand.BlameInput;
 import org.sonar.api.batch.scm.BlameCommand.BlameOutput;
 import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.Settings;
 import org.sonar.api.utils.DateUtils;
 import org.sonar.api.utils.command.Command;
 import org.sonar.api.utils.command.CommandExecutor;
 import org.sonar.api.utils.command.StreamConsumer;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
@@ -62,6 +71,7 @@ public class ClearCaseBlameCommandTest {
   private DefaultFileSystem fs;
   private File baseDir;
   private BlameInput input;
+  private Settings settings;
 
   @Before
   public void prepare() throws IOException {
@@ -70,6 +80,7 @@ public class ClearCaseBlameCommandTest {
     fs.setBaseDir(baseDir);
     input = mock(BlameInput.class);
     when(input.fileSystem()).thenReturn(fs);
+    settings = new Settings();
   }
 
   @Test
@@ -95,7 +106,7 @@ public class ClearCaseBlameCommandTest {
     });
 
     when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
-    new ClearCaseBlameCommand(commandExecutor).blame(input, result);
+    newBlameCommand(commandExecutor).blame(input, result);
     verify(result).blameResult(inputFile,
       Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde"),
         new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde"),
@@ -126,7 +137,7 @@ public class ClearCaseBlameCommandTest {
     });
 
     when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
-    new ClearCaseBlameCommand(commandExecutor).blame(input, result);
+    newBlameCommand(commandExecutor).blame(input, result);
     verify(result).blameResult(inputFile,
       Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde"),
         new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde"),
@@ -157,7 +168,7 @@ public class ClearCaseBlameCommandTest {
     });
 
     when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
-    new ClearCaseBlameCommand(commandExecutor).blame(input, result);
+    newBlameCommand(commandExecutor).blame(input, result);
     verifyZeroInteractions(result);
   }
 
@@ -184,7 +195,7 @@ public class ClearCaseBlameCommandTest {
     });
 
     when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
-    new ClearCaseBlameCommand(commandExecutor).blame(input, result);
+    newBlameCommand(commandExecutor).blame(input, result);
     verifyZeroInteractions(result);
   }
 
@@ -210,7 +221,7 @@ public class ClearCaseBlameCommandTest {
     });
 
     when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
-    new ClearCaseBlameCommand(commandExecutor).blame(input, result);
+    newBlameCommand(commandExecutor).blame(input, result);
     verifyZeroInteractions(result);
   }
 
@@ -241,7 +252,7 @@ public class ClearCaseBlameCommandTest {
     thrown.expectMessage(
       "The ClearCase annotate command [cleartool annotate -out - -fmt VERSION:%Ln@@@USER:%u@@@DATE:%Nd@@@ -nheader -f src/foo.xoo] failed: cleartool: Error: Unknown.");
 
-    new ClearCaseBlameCommand(commandExecutor).blame(input, result);
+    newBlameCommand(commandExecutor).blame(input, result);
   }
 
   // SONARSCCLC-3
@@ -266,8 +277,478 @@ public class ClearCaseBlameCommandTest {
     });
 
     when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
-    new ClearCaseBlameCommand(commandExecutor).blame(input, result);
+    newBlameCommand(commandExecutor).blame(input, result);
     verifyZeroInteractions(result);
   }
 
+  @Test
+  public void reuseBlameFromSnapshotWhenElementVersionIsUnchanged() throws IOException {
+    File source = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(source, "sample content");
+    DefaultInputFile inputFile = new DefaultInputFile("foo", "src/foo.xoo").setLines(2).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+
+    File snapshotFile = new File(temp.newFolder(), "blame.snapshot");
+    settings.setProperty(ClearCaseConfiguration.SNAPSHOT_EXPORT_PROP_KEY, snapshotFile.getAbsolutePath());
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("describe".equals(cl.getArguments().get(0))) {
+          describe(cl, outConsumer, "/main/7");
+        } else {
+          outConsumer.consumeLine("VERSION:7@@@USER:Jeremie Lagarde@@@DATE:20081026.162644@@@foo");
+          outConsumer.consumeLine("VERSION:5@@@USER:Evgeny Mandrikov@@@DATE:20081017.114150@@@bar");
+        }
+        return 0;
+      }
+    });
+    ClearCaseBlameSnapshots snapshots = newSnapshots();
+    newBlameCommand(commandExecutor, snapshots).blame(input, mock(BlameOutput.class));
+    assertThat(snapshotFile).doesNotExist();
+    snapshots.stop();
+    assertThat(snapshotFile).isFile();
+
+    settings.removeProperty(ClearCaseConfiguration.SNAPSHOT_EXPORT_PROP_KEY);
+    settings.setProperty(ClearCaseConfiguration.SNAPSHOT_IMPORT_PROP_KEY, snapshotFile.getAbsolutePath());
+    CommandExecutor describeOnly = mock(CommandExecutor.class);
+    when(describeOnly.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        assertThat(cl.getArguments().get(0)).isEqualTo("describe");
+        describe(cl, (StreamConsumer) invocation.getArguments()[1], "/main/7");
+        return 0;
+      }
+    });
+    BlameOutput result = mock(BlameOutput.class);
+    newBlameCommand(describeOnly).blame(input, result);
+    verify(result).blameResult(inputFile,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde"),
+        new BlameLine().date(DateUtils.parseDateTime("2008-10-17T11:41:50+0000")).revision("5").author("Evgeny Mandrikov")));
+  }
+
+  @Test
+  public void annotateWhenElementVersionChangedSinceSnapshot() throws IOException {
+    File source = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(source, "sample content");
+    DefaultInputFile inputFile = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+
+    ClearCaseBlameSnapshot snapshot = new ClearCaseBlameSnapshot();
+    snapshot.put("src/foo.xoo", "/main/6", Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-17T11:41:50+0000")).revision("6").author("Old")));
+    File snapshotFile = new File(temp.newFolder(), "blame.snapshot");
+    snapshot.save(snapshotFile);
+    settings.setProperty(ClearCaseConfiguration.SNAPSHOT_IMPORT_PROP_KEY, snapshotFile.getAbsolutePath());
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("describe".equals(cl.getArguments().get(0))) {
+          describe(cl, outConsumer, "/main/7");
+        } else {
+          outConsumer.consumeLine("VERSION:7@@@USER:Jeremie Lagarde@@@DATE:20081026.162644@@@foo");
+        }
+        return 0;
+      }
+    });
+
+    BlameOutput result = mock(BlameOutput.class);
+    newBlameCommand(commandExecutor).blame(input, result);
+    verify(result).blameResult(inputFile,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde")));
+  }
+
+  @Test
+  public void leanAnnotateResolvesAuthorAndDateFromHistory() throws IOException {
+    File source = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(source, "sample content");
+    DefaultInputFile inputFile = new DefaultInputFile("foo", "src/foo.xoo").setLines(3).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    settings.setProperty(ClearCaseConfiguration.LEAN_ANNOTATE_PROP_KEY, "true");
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("lshistory".equals(cl.getArguments().get(0))) {
+          assertThat(cl.getDirectory()).isEqualTo(new File(baseDir, "src"));
+          assertThat(cl.getArguments()).contains("foo.xoo");
+          outConsumer.consumeLine("ELEMENT:foo.xoo@@@VERSION:/main/7@@@USER:Jeremie Lagarde@@@DATE:20081026.162644");
+          outConsumer.consumeLine("ELEMENT:foo.xoo@@@VERSION:/main/5@@@USER:Evgeny Mandrikov@@@DATE:20081017.114150");
+          outConsumer.consumeLine("ELEMENT:foo.xoo@@@VERSION:@@@USER:Evgeny Mandrikov@@@DATE:20081017.114150");
+        } else {
+          assertThat(cl.getArguments()).contains("%Vn@@@");
+          outConsumer.consumeLine("/main/7@@@foo");
+          outConsumer.consumeLine("/main/7@@@");
+          outConsumer.consumeLine("/main/5@@@bar");
+        }
+        return 0;
+      }
+    });
+
+    BlameOutput result = mock(BlameOutput.class);
+    newBlameCommand(commandExecutor).blame(input, result);
+    verify(result).blameResult(inputFile,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde"),
+        new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde"),
+        new BlameLine().date(DateUtils.parseDateTime("2008-10-17T11:41:50+0000")).revision("5").author("Evgeny Mandrikov")));
+  }
+
+  @Test
+  public void leanAnnotateFallsBackToFullAnnotateOnUnknownVersion() throws IOException {
+    File source = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(source, "sample content");
+    DefaultInputFile inputFile = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    settings.setProperty(ClearCaseConfiguration.LEAN_ANNOTATE_PROP_KEY, "true");
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("lshistory".equals(cl.getArguments().get(0))) {
+          outConsumer.consumeLine("ELEMENT:foo.xoo@@@VERSION:/main/5@@@USER:Evgeny Mandrikov@@@DATE:20081017.114150");
+        } else if (cl.getArguments().contains("%Vn@@@")) {
+          outConsumer.consumeLine("/main/7@@@foo");
+        } else {
+          outConsumer.consumeLine("VERSION:7@@@USER:Jeremie Lagarde@@@DATE:20081026.162644@@@foo");
+        }
+        return 0;
+      }
+    });
+
+    BlameOutput result = mock(BlameOutput.class);
+    newBlameCommand(commandExecutor).blame(input, result);
+    verify(result).blameResult(inputFile,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde")));
+  }
+
+  @Test
+  public void consumePrefetchedBlame() throws Exception {
+    File source = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(source, "sample content");
+    final DefaultInputFile inputFile = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    fs.add(inputFile);
+    DefaultInputFile other = new DefaultInputFile("foo", "src/other.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/other.xoo").getAbsolutePath());
+    fs.add(other);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    settings.setProperty(ClearCaseConfiguration.PREFETCH_THREADS_PROP_KEY, "1");
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    ClearCaseConfiguration configuration = new ClearCaseConfiguration(settings);
+    ClearCaseBlameMemoryBudget memoryBudget = new ClearCaseBlameMemoryBudget(configuration);
+    ClearCaseBlamePrefetcher prefetcher = new ClearCaseBlamePrefetcher(configuration, memoryBudget);
+    final CountDownLatch annotated = new CountDownLatch(2);
+    prefetcher.start(Arrays.<InputFile>asList(other, inputFile), new ClearCaseBlamePrefetcher.Annotator() {
+      @Override
+      public ClearCaseBlamePrefetcher.Result annotate(InputFile file) {
+        annotated.countDown();
+        return new ClearCaseBlamePrefetcher.Result(
+          Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author(file.relativePath())), null);
+      }
+    });
+    assertThat(annotated.await(5, TimeUnit.SECONDS)).isTrue();
+
+    BlameOutput result = mock(BlameOutput.class);
+    new ClearCaseBlameCommand(commandExecutor, configuration, memoryBudget, prefetcher, newSnapshots()).blame(input, result);
+    verify(result).blameResult(inputFile,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("src/foo.xoo")));
+    verifyNoMoreInteractions(result);
+    verifyZeroInteractions(commandExecutor);
+    assertThat(memoryBudget.bytesInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void keepPrefetchingWhileConsumingBeyondMemoryBudget() throws Exception {
+    DefaultInputFile foo = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    DefaultInputFile other = new DefaultInputFile("foo", "src/other.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/other.xoo").getAbsolutePath());
+    DefaultInputFile bar = new DefaultInputFile("foo", "src/bar.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/bar.xoo").getAbsolutePath());
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(foo, bar));
+    settings.setProperty(ClearCaseConfiguration.PREFETCH_THREADS_PROP_KEY, "2");
+
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    ClearCaseConfiguration configuration = new ClearCaseConfiguration(settings);
+    // Only fits one file at a time, so the feeder has to go on while blame() consumes
+    ClearCaseBlameMemoryBudget memoryBudget = new ClearCaseBlameMemoryBudget(ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    ClearCaseBlamePrefetcher prefetcher = new ClearCaseBlamePrefetcher(configuration, memoryBudget);
+    prefetcher.start(Arrays.<InputFile>asList(foo, other, bar), new ClearCaseBlamePrefetcher.Annotator() {
+      @Override
+      public ClearCaseBlamePrefetcher.Result annotate(InputFile file) {
+        return new ClearCaseBlamePrefetcher.Result(
+          Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author(file.relativePath())), null);
+      }
+    });
+
+    BlameOutput result = mock(BlameOutput.class);
+    new ClearCaseBlameCommand(commandExecutor, configuration, memoryBudget, prefetcher, newSnapshots()).blame(input, result);
+    verify(result).blameResult(foo,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("src/foo.xoo")));
+    verify(result).blameResult(bar,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("src/bar.xoo")));
+    verifyNoMoreInteractions(result);
+    verifyZeroInteractions(commandExecutor);
+    assertThat(memoryBudget.bytesInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void exportSnapshotOfAllModules() throws IOException {
+    File moduleA = new File(baseDir, "moduleA");
+    File moduleB = new File(baseDir, "moduleB");
+    DefaultInputFile fileA = new DefaultInputFile("moduleA", "src/foo.xoo").setLines(1).setAbsolutePath(new File(moduleA, "src/foo.xoo").getAbsolutePath());
+    DefaultInputFile fileB = new DefaultInputFile("moduleB", "src/foo.xoo").setLines(1).setAbsolutePath(new File(moduleB, "src/foo.xoo").getAbsolutePath());
+    FileUtils.write(fileA.file(), "sample content");
+    FileUtils.write(fileB.file(), "sample content");
+
+    File snapshotFile = new File(temp.newFolder(), "blame.snapshot");
+    settings.setProperty(ClearCaseConfiguration.SNAPSHOT_EXPORT_PROP_KEY, snapshotFile.getAbsolutePath());
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("describe".equals(cl.getArguments().get(0))) {
+          describe(cl, outConsumer, "/main/7");
+        } else {
+          outConsumer.consumeLine("VERSION:7@@@USER:" + cl.getDirectory().getName() + "@@@DATE:20081026.162644@@@foo");
+        }
+        return 0;
+      }
+    });
+
+    ClearCaseBlameMemoryBudget memoryBudget = new ClearCaseBlameMemoryBudget(new ClearCaseConfiguration(settings));
+    ClearCaseBlameSnapshots snapshots = newSnapshots(memoryBudget);
+    ClearCaseBlameCommand blameCommand = newBlameCommand(commandExecutor, snapshots);
+    blameCommand.blame(moduleInput(moduleA, fileA), mock(BlameOutput.class));
+    blameCommand.blame(moduleInput(moduleB, fileB), mock(BlameOutput.class));
+    snapshots.stop();
+    assertThat(memoryBudget.bytesRetained()).isEqualTo(2 * ClearCaseBlameSnapshots.BYTES_PER_RUN);
+
+    ClearCaseBlameSnapshot snapshot = ClearCaseBlameSnapshot.load(snapshotFile);
+    assertThat(snapshot.size()).isEqualTo(2);
+    assertThat(snapshot.get("moduleA/src/foo.xoo", "/main/7").get(0).author()).isEqualTo("moduleA");
+    assertThat(snapshot.get("moduleB/src/foo.xoo", "/main/7").get(0).author()).isEqualTo("moduleB");
+  }
+
+  @Test
+  public void describeElementsOncePerDirectory() throws IOException {
+    DefaultInputFile foo = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    DefaultInputFile bar = new DefaultInputFile("foo", "src/bar.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/bar.xoo").getAbsolutePath());
+    FileUtils.write(foo.file(), "sample content");
+    FileUtils.write(bar.file(), "sample content");
+    fs.add(foo);
+    fs.add(bar);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(foo, bar));
+    settings.setProperty(ClearCaseConfiguration.SNAPSHOT_EXPORT_PROP_KEY, new File(temp.newFolder(), "blame.snapshot").getAbsolutePath());
+
+    final List<Command> describes = new ArrayList<Command>();
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("describe".equals(cl.getArguments().get(0))) {
+          describes.add(cl);
+          describe(cl, outConsumer, "/main/7");
+        } else {
+          outConsumer.consumeLine("VERSION:7@@@USER:Jeremie Lagarde@@@DATE:20081026.162644@@@foo");
+        }
+        return 0;
+      }
+    });
+
+    ClearCaseBlameSnapshots snapshots = newSnapshots();
+    newBlameCommand(commandExecutor, snapshots).blame(input, mock(BlameOutput.class));
+    assertThat(describes).hasSize(1);
+    assertThat(describes.get(0).getDirectory()).isEqualTo(new File(baseDir, "src"));
+    assertThat(describes.get(0).getArguments()).contains("foo.xoo", "bar.xoo");
+  }
+
+  @Test
+  public void prefetchInLeanModeSharesHistoryOfDirectory() throws IOException {
+    DefaultInputFile foo = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    DefaultInputFile bar = new DefaultInputFile("foo", "src/bar.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/bar.xoo").getAbsolutePath());
+    FileUtils.write(foo.file(), "sample content");
+    FileUtils.write(bar.file(), "sample content");
+    settings.setProperty(ClearCaseConfiguration.LEAN_ANNOTATE_PROP_KEY, "true");
+
+    final List<Command> histories = new ArrayList<Command>();
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("lshistory".equals(cl.getArguments().get(0))) {
+          histories.add(cl);
+          outConsumer.consumeLine("ELEMENT:foo.xoo@@@VERSION:/main/7@@@USER:Jeremie Lagarde@@@DATE:20081026.162644");
+          outConsumer.consumeLine("ELEMENT:bar.xoo@@@VERSION:/main/5@@@USER:Evgeny Mandrikov@@@DATE:20081017.114150");
+        } else {
+          assertThat(cl.getArguments()).contains("%Vn@@@");
+          outConsumer.consumeLine(cl.getArguments().contains("src/foo.xoo") ? "/main/7@@@foo" : "/main/5@@@bar");
+        }
+        return 0;
+      }
+    });
+
+    ClearCaseBlamePrefetcher.Annotator annotator = newBlameCommand(commandExecutor).prefetchAnnotator(fs, Arrays.<InputFile>asList(foo, bar));
+    assertThat(annotator.annotate(foo).lines()).containsExactly(
+      new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde"));
+    assertThat(annotator.annotate(bar).lines()).containsExactly(
+      new BlameLine().date(DateUtils.parseDateTime("2008-10-17T11:41:50+0000")).revision("5").author("Evgeny Mandrikov"));
+    assertThat(histories).hasSize(1);
+    assertThat(histories.get(0).getArguments()).contains("foo.xoo", "bar.xoo");
+  }
+
+  @Test
+  public void prefetchResolvesElementVersionOfExportedSnapshot() throws Exception {
+    File source = new File(baseDir, "src/foo.xoo");
+    FileUtils.write(source, "sample content");
+    DefaultInputFile inputFile = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath(source.getAbsolutePath());
+    fs.add(inputFile);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(inputFile));
+    File snapshotFile = new File(temp.newFolder(), "blame.snapshot");
+    settings.setProperty(ClearCaseConfiguration.SNAPSHOT_EXPORT_PROP_KEY, snapshotFile.getAbsolutePath());
+    settings.setProperty(ClearCaseConfiguration.PREFETCH_THREADS_PROP_KEY, "1");
+
+    final List<String> describeThreads = new ArrayList<String>();
+    final CountDownLatch annotated = new CountDownLatch(1);
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("describe".equals(cl.getArguments().get(0))) {
+          describeThreads.add(Thread.currentThread().getName());
+          describe(cl, outConsumer, "/main/7");
+        } else {
+          outConsumer.consumeLine("VERSION:7@@@USER:Jeremie Lagarde@@@DATE:20081026.162644@@@foo");
+          annotated.countDown();
+        }
+        return 0;
+      }
+    });
+
+    ClearCaseConfiguration configuration = new ClearCaseConfiguration(settings);
+    ClearCaseBlameMemoryBudget memoryBudget = new ClearCaseBlameMemoryBudget(configuration);
+    ClearCaseBlamePrefetcher prefetcher = new ClearCaseBlamePrefetcher(configuration, memoryBudget);
+    ClearCaseBlameSnapshots snapshots = newSnapshots(memoryBudget);
+    ClearCaseBlameCommand blameCommand = new ClearCaseBlameCommand(commandExecutor, configuration, memoryBudget, prefetcher, snapshots);
+    prefetcher.start(Arrays.<InputFile>asList(inputFile), blameCommand.prefetchAnnotator(fs, Arrays.<InputFile>asList(inputFile)));
+    assertThat(annotated.await(5, TimeUnit.SECONDS)).isTrue();
+    blameCommand.blame(input, mock(BlameOutput.class));
+    snapshots.stop();
+
+    assertThat(describeThreads).hasSize(1);
+    assertThat(describeThreads.get(0)).startsWith("clearcase-blame-prefetch-");
+    assertThat(ClearCaseBlameSnapshot.load(snapshotFile).lines("src/foo.xoo", "/main/7")).isEqualTo(1);
+  }
+
+  @Test
+  public void leanAnnotateDoesNotFetchHistoryOfFilesInSnapshot() throws IOException {
+    DefaultInputFile foo = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/foo.xoo").getAbsolutePath());
+    DefaultInputFile bar = new DefaultInputFile("foo", "src/bar.xoo").setLines(1).setAbsolutePath(new File(baseDir, "src/bar.xoo").getAbsolutePath());
+    FileUtils.write(foo.file(), "sample content");
+    FileUtils.write(bar.file(), "sample content");
+    fs.add(foo);
+    fs.add(bar);
+    when(input.filesToBlame()).thenReturn(Arrays.<InputFile>asList(foo, bar));
+
+    ClearCaseBlameSnapshot snapshot = new ClearCaseBlameSnapshot();
+    snapshot.put("src/foo.xoo", "/main/7", Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde")));
+    File snapshotFile = new File(temp.newFolder(), "blame.snapshot");
+    snapshot.save(snapshotFile);
+    settings.setProperty(ClearCaseConfiguration.SNAPSHOT_IMPORT_PROP_KEY, snapshotFile.getAbsolutePath());
+    settings.setProperty(ClearCaseConfiguration.LEAN_ANNOTATE_PROP_KEY, "true");
+
+    final List<Command> histories = new ArrayList<Command>();
+    CommandExecutor commandExecutor = mock(CommandExecutor.class);
+    when(commandExecutor.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class), anyLong())).thenAnswer(new Answer<Integer>() {
+
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if ("describe".equals(cl.getArguments().get(0))) {
+          describe(cl, outConsumer, "/main/7");
+        } else if ("lshistory".equals(cl.getArguments().get(0))) {
+          histories.add(cl);
+          outConsumer.consumeLine("ELEMENT:bar.xoo@@@VERSION:/main/7@@@USER:Evgeny Mandrikov@@@DATE:20081017.114150");
+        } else {
+          outConsumer.consumeLine("/main/7@@@bar");
+        }
+        return 0;
+      }
+    });
+
+    BlameOutput result = mock(BlameOutput.class);
+    newBlameCommand(commandExecutor).blame(input, result);
+    verify(result).blameResult(foo,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7").author("Jeremie Lagarde")));
+    verify(result).blameResult(bar,
+      Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-17T11:41:50+0000")).revision("7").author("Evgeny Mandrikov")));
+    assertThat(histories).hasSize(1);
+    assertThat(histories.get(0).getArguments()).contains("bar.xoo").doesNotContain("foo.xoo");
+  }
+
+  private static BlameInput moduleInput(File moduleBaseDir, InputFile inputFile) {
+    DefaultFileSystem moduleFs = new DefaultFileSystem();
+    moduleFs.setBaseDir(moduleBaseDir);
+    moduleFs.add(inputFile);
+    BlameInput moduleInput = mock(BlameInput.class);
+    when(moduleInput.fileSystem()).thenReturn(moduleFs);
+    when(moduleInput.filesToBlame()).thenReturn(Arrays.asList(inputFile));
+    return moduleInput;
+  }
+
+  private static void describe(Command cl, StreamConsumer outConsumer, String version) {
+    List<String> arguments = cl.getArguments();
+    for (String element : arguments.subList(3, arguments.size())) {
+      outConsumer.consumeLine("ELEMENT:" + element + "@@@VERSION:" + version);
+    }
+  }
+
+  private ClearCaseBlameSnapshots newSnapshots() {
+    return newSnapshots(new ClearCaseBlameMemoryBudget(new ClearCaseConfiguration(settings)));
+  }
+
+  private ClearCaseBlameSnapshots newSnapshots(ClearCaseBlameMemoryBudget memoryBudget) {
+    return new ClearCaseBlameSnapshots(new ClearCaseConfiguration(settings), memoryBudget, new ProjectReactor(ProjectDefinition.create().setBaseDir(baseDir)));
+  }
+
+  private ClearCaseBlameCommand newBlameCommand(CommandExecutor commandExecutor) {
+    return newBlameCommand(commandExecutor, newSnapshots());
+  }
+
+  private ClearCaseBlameCommand newBlameCommand(CommandExecutor commandExecutor, ClearCaseBlameSnapshots snapshots) {
+    ClearCaseConfiguration configuration = new ClearCaseConfiguration(settings);
+    ClearCaseBlameMemoryBudget memoryBudget = new ClearCaseBlameMemoryBudget(configuration);
+    return new ClearCaseBlameCommand(commandExecutor, configuration, memoryBudget, new ClearCaseBlamePrefetcher(configuration, memoryBudget), snapshots);
+  }
+
 }
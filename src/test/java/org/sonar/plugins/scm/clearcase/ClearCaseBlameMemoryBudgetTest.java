@@ -0,0 +1,106 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClearCaseBlameMemoryBudgetTest {
+
+  @Test
+  public void defaultBudgetIsAQuarterOfMaxHeap() {
+    Settings settings = new Settings();
+    assertThat(new ClearCaseBlameMemoryBudget(new ClearCaseConfiguration(settings)).maxBytes()).isEqualTo(Runtime.getRuntime().maxMemory() / 4);
+
+    settings.setProperty(ClearCaseConfiguration.MEMORY_BUDGET_PROP_KEY, "16");
+    assertThat(new ClearCaseBlameMemoryBudget(new ClearCaseConfiguration(settings)).maxBytes()).isEqualTo(16L * 1024 * 1024);
+  }
+
+  @Test
+  public void admitFileLargerThanBudgetWhenNothingIsInFlight() {
+    ClearCaseBlameMemoryBudget budget = new ClearCaseBlameMemoryBudget(ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    long reserved = budget.acquire(10);
+    assertThat(reserved).isEqualTo(10 * ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    budget.release(10, reserved);
+
+    assertThat(budget.peakLines()).isEqualTo(10);
+    assertThat(budget.peakBytes()).isEqualTo(reserved);
+    assertThat(budget.heldBackCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void holdBackUntilEarlierResultsAreReleased() throws InterruptedException {
+    final ClearCaseBlameMemoryBudget budget = new ClearCaseBlameMemoryBudget(15 * ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    long first = budget.acquire(10);
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread worker = new Thread() {
+      @Override
+      public void run() {
+        long second = budget.acquire(10);
+        acquired.countDown();
+        budget.release(10, second);
+      }
+    };
+    worker.start();
+    assertThat(acquired.await(200, TimeUnit.MILLISECONDS)).isFalse();
+
+    budget.release(10, first);
+    assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue();
+    worker.join();
+
+    assertThat(budget.heldBackCount()).isEqualTo(1);
+    assertThat(budget.heldBackMillis()).isGreaterThanOrEqualTo(100);
+    assertThat(budget.peakLines()).isEqualTo(10);
+  }
+
+  @Test
+  public void retainedMemoryHoldsBackWorkersWithoutBlocking() throws InterruptedException {
+    final ClearCaseBlameMemoryBudget budget = new ClearCaseBlameMemoryBudget(15 * ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    budget.retain(10 * ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    long first = budget.acquire(10);
+    assertThat(budget.peakBytes()).isEqualTo(20 * ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread worker = new Thread() {
+      @Override
+      public void run() {
+        long second = budget.acquire(1);
+        acquired.countDown();
+        budget.release(1, second);
+      }
+    };
+    worker.start();
+    assertThat(acquired.await(200, TimeUnit.MILLISECONDS)).isFalse();
+
+    budget.retain(-10 * ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue();
+    worker.join();
+    budget.release(10, first);
+
+    assertThat(budget.bytesRetained()).isEqualTo(0);
+    assertThat(budget.heldBackCount()).isEqualTo(1);
+  }
+
+}
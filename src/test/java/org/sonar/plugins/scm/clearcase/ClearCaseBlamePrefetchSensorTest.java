@@ -0,0 +1,102 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.CoreProperties;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultFileSystem;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.config.Settings;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class ClearCaseBlamePrefetchSensorTest {
+
+  private Settings settings;
+  private DefaultFileSystem fs;
+  private ClearCaseBlamePrefetcher prefetcher;
+  private ClearCaseBlamePrefetchSensor sensor;
+
+  @Before
+  public void prepare() {
+    settings = new Settings();
+    fs = new DefaultFileSystem();
+    prefetcher = mock(ClearCaseBlamePrefetcher.class);
+    sensor = new ClearCaseBlamePrefetchSensor(new ClearCaseConfiguration(settings), fs, mock(ClearCaseBlameCommand.class), prefetcher);
+  }
+
+  @Test
+  public void disabledByDefault() {
+    settings.setProperty(CoreProperties.SCM_PROVIDER_KEY, "clearcase");
+    assertThat(sensor.shouldExecuteOnProject(null)).isFalse();
+  }
+
+  @Test
+  public void onlyExecuteWhenClearCaseIsTheScmProvider() {
+    settings.setProperty(ClearCaseConfiguration.PREFETCH_THREADS_PROP_KEY, "2");
+    assertThat(sensor.shouldExecuteOnProject(null)).isFalse();
+
+    settings.setProperty(CoreProperties.SCM_PROVIDER_KEY, "clearcase");
+    assertThat(sensor.shouldExecuteOnProject(null)).isTrue();
+
+    settings.setProperty(CoreProperties.SCM_DISABLED_KEY, "true");
+    assertThat(sensor.shouldExecuteOnProject(null)).isFalse();
+  }
+
+  @Test
+  public void disabledWhenImportingSnapshot() {
+    settings.setProperty(ClearCaseConfiguration.PREFETCH_THREADS_PROP_KEY, "2");
+    settings.setProperty(CoreProperties.SCM_PROVIDER_KEY, "clearcase");
+    settings.setProperty(ClearCaseConfiguration.SNAPSHOT_IMPORT_PROP_KEY, "blame.snapshot");
+    assertThat(sensor.shouldExecuteOnProject(null)).isFalse();
+  }
+
+  @Test
+  public void onlyPrefetchFilesChangedSincePreviousAnalysis() {
+    DefaultInputFile same = new DefaultInputFile("foo", "src/same.xoo").setStatus(InputFile.Status.SAME);
+    DefaultInputFile changed = new DefaultInputFile("foo", "src/changed.xoo").setStatus(InputFile.Status.CHANGED);
+    DefaultInputFile added = new DefaultInputFile("foo", "src/added.xoo").setStatus(InputFile.Status.ADDED);
+    fs.add(same);
+    fs.add(changed);
+    fs.add(added);
+
+    sensor.analyse(null, null);
+    assertThat(prefetchedFiles()).containsOnly(changed, added);
+
+    settings.setProperty(ClearCaseConfiguration.FORCE_RELOAD_ALL_PROP_KEY, "true");
+    sensor.analyse(null, null);
+    assertThat(prefetchedFiles()).containsOnly(same, changed, added);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Iterable<InputFile> prefetchedFiles() {
+    ArgumentCaptor<Iterable> files = ArgumentCaptor.forClass(Iterable.class);
+    verify(prefetcher, atLeastOnce()).start(files.capture(), any(ClearCaseBlamePrefetcher.Annotator.class));
+    return files.getValue();
+  }
+
+}
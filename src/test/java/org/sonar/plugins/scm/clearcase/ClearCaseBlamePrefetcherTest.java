@@ -0,0 +1,153 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.batch.fs.InputFile;
+import org.sonar.api.batch.fs.internal.DefaultInputFile;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.config.Settings;
+import org.sonar.api.platform.ComponentContainer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClearCaseBlamePrefetcherTest {
+
+  private ClearCaseBlameMemoryBudget memoryBudget;
+  private ClearCaseBlamePrefetcher prefetcher;
+  private DefaultInputFile foo = new DefaultInputFile("foo", "src/foo.xoo").setLines(1).setAbsolutePath("/tmp/src/foo.xoo");
+  private DefaultInputFile bar = new DefaultInputFile("foo", "src/bar.xoo").setLines(1).setAbsolutePath("/tmp/src/bar.xoo");
+
+  @Before
+  public void prepare() {
+    Settings settings = new Settings();
+    settings.setProperty(ClearCaseConfiguration.PREFETCH_THREADS_PROP_KEY, "2");
+    ClearCaseConfiguration configuration = new ClearCaseConfiguration(settings);
+    memoryBudget = new ClearCaseBlameMemoryBudget(ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    prefetcher = new ClearCaseBlamePrefetcher(configuration, memoryBudget);
+  }
+
+  @Test
+  public void prefetchInSubmissionOrderWithinMemoryBudget() throws Exception {
+    prefetcher.start(Arrays.<InputFile>asList(foo, bar), new ClearCaseBlamePrefetcher.Annotator() {
+      @Override
+      public ClearCaseBlamePrefetcher.Result annotate(InputFile inputFile) {
+        return new ClearCaseBlamePrefetcher.Result(Arrays.asList(new BlameLine().revision("1").author(inputFile.relativePath())), null);
+      }
+    });
+    assertThat(prefetcher.isQueued(foo)).isTrue();
+    assertThat(prefetcher.isQueued(bar)).isTrue();
+
+    // Budget only fits one file, so bar is only submitted once foo is consumed
+    ClearCaseBlamePrefetcher.Prefetch first = prefetcher.next();
+    assertThat(first.inputFile()).isEqualTo(foo);
+    assertThat(prefetcher.isQueued(foo)).isFalse();
+    assertThat(first.get().lines().get(0).author()).isEqualTo("src/foo.xoo");
+    assertThat(memoryBudget.bytesInFlight()).isEqualTo(ClearCaseBlameMemoryBudget.BYTES_PER_LINE);
+    first.release();
+
+    ClearCaseBlamePrefetcher.Prefetch second = prefetcher.next();
+    assertThat(second.inputFile()).isEqualTo(bar);
+    assertThat(second.get().lines().get(0).author()).isEqualTo("src/bar.xoo");
+    second.release();
+    assertThat(prefetcher.next()).isNull();
+    assertThat(memoryBudget.bytesInFlight()).isEqualTo(0);
+  }
+
+  @Test
+  public void stopCancelsPendingWork() throws Exception {
+    final CountDownLatch annotating = new CountDownLatch(1);
+    final CountDownLatch blocker = new CountDownLatch(1);
+    prefetcher.start(Arrays.<InputFile>asList(foo, bar), new ClearCaseBlamePrefetcher.Annotator() {
+      @Override
+      public ClearCaseBlamePrefetcher.Result annotate(InputFile inputFile) {
+        annotating.countDown();
+        try {
+          blocker.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return null;
+      }
+    });
+    assertThat(annotating.await(5, TimeUnit.SECONDS)).isTrue();
+
+    prefetcher.stop();
+    assertThat(memoryBudget.bytesInFlight()).isEqualTo(0);
+    assertThat(prefetcher.next()).isNull();
+  }
+
+  @Test(expected = ExecutionException.class)
+  public void propagateAnnotateFailure() throws Exception {
+    final CountDownLatch annotated = new CountDownLatch(1);
+    prefetcher.start(Arrays.<InputFile>asList(foo), new ClearCaseBlamePrefetcher.Annotator() {
+      @Override
+      public ClearCaseBlamePrefetcher.Result annotate(InputFile inputFile) {
+        annotated.countDown();
+        throw new IllegalStateException("The ClearCase annotate command failed");
+      }
+    });
+    assertThat(annotated.await(5, TimeUnit.SECONDS)).isTrue();
+
+    ClearCaseBlamePrefetcher.Prefetch prefetch = prefetcher.next();
+    try {
+      prefetch.get();
+    } finally {
+      prefetch.release();
+    }
+  }
+
+  @Test
+  public void cancelPendingWorkWhenContainerStops() throws Exception {
+    Settings settings = new Settings();
+    settings.setProperty(ClearCaseConfiguration.PREFETCH_THREADS_PROP_KEY, "1");
+    ComponentContainer container = new ComponentContainer();
+    container.add(settings, ClearCaseConfiguration.class, ClearCaseBlameMemoryBudget.class, ClearCaseBlamePrefetcher.class);
+    container.startComponents();
+    ClearCaseBlamePrefetcher prefetcher = container.getComponentByType(ClearCaseBlamePrefetcher.class);
+    ClearCaseBlameMemoryBudget memoryBudget = container.getComponentByType(ClearCaseBlameMemoryBudget.class);
+
+    final CountDownLatch annotating = new CountDownLatch(1);
+    final CountDownLatch blocker = new CountDownLatch(1);
+    prefetcher.start(Arrays.<InputFile>asList(foo, bar), new ClearCaseBlamePrefetcher.Annotator() {
+      @Override
+      public ClearCaseBlamePrefetcher.Result annotate(InputFile inputFile) {
+        annotating.countDown();
+        try {
+          blocker.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return null;
+      }
+    });
+    assertThat(annotating.await(5, TimeUnit.SECONDS)).isTrue();
+
+    container.stopComponents();
+    assertThat(memoryBudget.bytesInFlight()).isEqualTo(0);
+    assertThat(prefetcher.next()).isNull();
+  }
+
+}
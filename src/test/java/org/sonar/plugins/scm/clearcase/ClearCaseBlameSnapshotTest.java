@@ -0,0 +1,125 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.scm.BlameLine;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClearCaseBlameSnapshotTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void roundTrip() throws IOException {
+    List<BlameLine> foo = Arrays.asList(
+      new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("/main/7").author("Jeremie Lagarde"),
+      new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("/main/7").author("Jeremie Lagarde"),
+      new BlameLine().date(DateUtils.parseDateTime("2008-10-17T11:41:50+0000")).revision("/main/5").author("Evgeny Mandrikov"));
+    List<BlameLine> bar = Arrays.asList(
+      new BlameLine().date(DateUtils.parseDateTime("2008-10-17T11:41:50+0000")).revision("/main/5").author("Evgeny Mandrikov"),
+      new BlameLine().date(DateUtils.parseDateTime("2007-01-01T00:00:00+0000")).revision(null).author(null));
+
+    ClearCaseBlameSnapshot snapshot = new ClearCaseBlameSnapshot();
+    assertThat(snapshot.put("src/foo.xoo", "/main/7", foo)).isTrue();
+    assertThat(snapshot.put("src/bar.xoo", "/main/br/2", bar)).isTrue();
+
+    ClearCaseBlameSnapshot read = ClearCaseBlameSnapshot.read(new ByteArrayInputStream(toBytes(snapshot)));
+    assertThat(read.size()).isEqualTo(2);
+    assertThat(read.get("src/foo.xoo", "/main/7")).isEqualTo(foo);
+    assertThat(read.get("src/bar.xoo", "/main/br/2")).isEqualTo(bar);
+    assertThat(read.get("src/foo.xoo", "/main/8")).isNull();
+    assertThat(read.get("src/baz.xoo", "/main/1")).isNull();
+  }
+
+  @Test
+  public void saveReplacesPreviousSnapshotWithoutLeavingTemporaryFiles() throws IOException {
+    File dir = temp.newFolder();
+    File file = new File(dir, "blame.snapshot");
+    ClearCaseBlameSnapshot snapshot = new ClearCaseBlameSnapshot();
+    snapshot.put("src/foo.xoo", "/main/7", Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-26T16:26:44+0000")).revision("7")));
+    snapshot.save(file);
+    snapshot.put("src/bar.xoo", "/main/5", Arrays.asList(new BlameLine().date(DateUtils.parseDateTime("2008-10-17T11:41:50+0000")).revision("5")));
+    snapshot.save(file);
+
+    assertThat(ClearCaseBlameSnapshot.load(file).size()).isEqualTo(2);
+    assertThat(dir.list()).containsOnly("blame.snapshot");
+  }
+
+  @Test
+  public void dontRecordLinesWithoutDate() {
+    ClearCaseBlameSnapshot snapshot = new ClearCaseBlameSnapshot();
+    assertThat(snapshot.put("src/foo.xoo", "/main/7", Arrays.asList(new BlameLine().revision("/main/7").author("Jeremie Lagarde")))).isFalse();
+    assertThat(snapshot.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void failOnUnknownContent() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    gzip.write(new byte[] {1, 2, 3, 4, 5});
+    gzip.finish();
+
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Not a ClearCase blame snapshot");
+    ClearCaseBlameSnapshot.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  @Test
+  public void failOnTruncatedContentWithHugeCounts() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream(out);
+    DataOutputStream data = new DataOutputStream(gzip);
+    data.writeInt(0x43434253);
+    data.writeByte(1);
+    // Dictionary of Integer.MAX_VALUE authors, followed by nothing
+    data.write(new byte[] {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+    data.flush();
+    gzip.finish();
+
+    thrown.expect(EOFException.class);
+    ClearCaseBlameSnapshot.read(new ByteArrayInputStream(out.toByteArray()));
+  }
+
+  private static byte[] toBytes(ClearCaseBlameSnapshot snapshot) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    snapshot.write(out);
+    return out.toByteArray();
+  }
+
+}
@@ -0,0 +1,51 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.sonar.api.utils.DateUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ClearCaseDateParserTest {
+
+  @Rule
+  public UTCRule utcRule = new UTCRule();
+
+  @Test
+  public void parseClearCaseDates() {
+    assertThat(new ClearCaseDateParser().parse("20081026.162644")).isEqualTo(DateUtils.parseDateTime("2008-10-26T16:26:44+0000"));
+  }
+
+  @Test
+  public void invalidDatesAreNullInBothAnnotateModes() {
+    assertThat(new ClearCaseDateParser().parse("yesterday")).isNull();
+
+    ClearCaseBlameConsumer blameConsumer = new ClearCaseBlameConsumer("foo.xoo");
+    blameConsumer.consumeLine("VERSION:7@@@USER:Jeremie Lagarde@@@DATE:yesterday@@@foo");
+    assertThat(blameConsumer.getLines().get(0).date()).isNull();
+
+    ClearCaseHistoryConsumer historyConsumer = new ClearCaseHistoryConsumer();
+    historyConsumer.consumeLine("ELEMENT:foo.xoo@@@VERSION:/main/7@@@USER:Jeremie Lagarde@@@DATE:yesterday");
+    assertThat(historyConsumer.getVersions().get(ClearCaseHistoryConsumer.key("foo.xoo", "/main/7")).date()).isNull();
+  }
+
+}
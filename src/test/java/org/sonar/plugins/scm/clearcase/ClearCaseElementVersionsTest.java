@@ -0,0 +1,106 @@
+/*
+ * SonarQube :: Plugins :: SCM :: ClearCase
+ * Copyright (C) 2014-2016 SonarSource SA
+ * mailto:contact AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.plugins.scm.clearcase;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sonar.api.utils.command.Command;
+import org.sonar.api.utils.command.StreamConsumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ClearCaseElementVersionsTest {
+
+  private final File dirA = new File("/vobs/a");
+  private final File dirB = new File("/vobs/b");
+  private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void loadDirectoriesWithoutHoldingBackOtherDirectories() throws Exception {
+    final CountDownLatch loadingA = new CountDownLatch(1);
+    final CountDownLatch releaseA = new CountDownLatch(1);
+    final AtomicInteger loadsOfA = new AtomicInteger();
+    ClearCaseBlameCommand command = mock(ClearCaseBlameCommand.class);
+    when(command.execute(any(Command.class), any(StreamConsumer.class), any(StreamConsumer.class))).thenAnswer(new Answer<Integer>() {
+      @Override
+      public Integer answer(InvocationOnMock invocation) throws Throwable {
+        Command cl = (Command) invocation.getArguments()[0];
+        StreamConsumer outConsumer = (StreamConsumer) invocation.getArguments()[1];
+        if (dirA.equals(cl.getDirectory())) {
+          loadsOfA.incrementAndGet();
+          loadingA.countDown();
+          releaseA.await();
+        }
+        List<String> arguments = cl.getArguments();
+        for (String element : arguments.subList(3, arguments.size())) {
+          outConsumer.consumeLine("ELEMENT:" + element + "@@@VERSION:/main/1");
+        }
+        return 0;
+      }
+    });
+    final ClearCaseElementVersions versions = new ClearCaseElementVersions(command);
+    versions.register(new File(dirA, "foo.xoo"));
+    versions.register(new File(dirA, "bar.xoo"));
+    versions.register(new File(dirB, "baz.xoo"));
+
+    Future<String> foo = executor.submit(lookup(versions, new File(dirA, "foo.xoo")));
+    assertThat(loadingA.await(5, TimeUnit.SECONDS)).isTrue();
+    Future<String> bar = executor.submit(lookup(versions, new File(dirA, "bar.xoo")));
+
+    // Directory b and bookkeeping are not held back by the load of directory a
+    assertThat(executor.submit(lookup(versions, new File(dirB, "baz.xoo"))).get(5, TimeUnit.SECONDS)).isEqualTo("/main/1");
+    versions.done(new File(dirB, "baz.xoo"));
+    assertThat(foo.isDone()).isFalse();
+
+    releaseA.countDown();
+    assertThat(foo.get(5, TimeUnit.SECONDS)).isEqualTo("/main/1");
+    assertThat(bar.get(5, TimeUnit.SECONDS)).isEqualTo("/main/1");
+    assertThat(loadsOfA.get()).isEqualTo(1);
+  }
+
+  private static Callable<String> lookup(final ClearCaseElementVersions versions, final File element) {
+    return new Callable<String>() {
+      @Override
+      public String call() {
+        return versions.get(element);
+      }
+    };
+  }
+
+}
@@ -27,6 +27,6 @@ public class ClearCasePluginTest {
 
   @Test
   public void getExtensions() {
-    assertThat(new ClearCasePlugin().getExtensions()).hasSize(2);
+    assertThat(new ClearCasePlugin().getExtensions()).hasSize(12);
   }
 }